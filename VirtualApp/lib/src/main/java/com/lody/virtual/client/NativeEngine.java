@@ -45,7 +45,10 @@ public class NativeEngine {
 
 
     public static void startDexOverride() {
-        List<InstalledAppInfo> installedAppInfos = VirtualCore.get().getInstalledApps(0);
+        startDexOverride(VirtualCore.get().getInstalledApps(0));
+    }
+
+    public static void startDexOverride(List<InstalledAppInfo> installedAppInfos) {
         sDexOverrideMap = new HashMap<>(installedAppInfos.size());
         for (InstalledAppInfo info : installedAppInfos) {
             try {
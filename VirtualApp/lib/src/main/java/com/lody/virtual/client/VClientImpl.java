@@ -25,6 +25,7 @@ import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.lody.virtual.client.core.CrashHandler;
@@ -40,15 +41,17 @@ import com.lody.virtual.client.hook.secondary.ProxyServiceFactory;
 import com.lody.virtual.client.ipc.VActivityManager;
 import com.lody.virtual.client.ipc.VDeviceManager;
 import com.lody.virtual.client.ipc.VPackageManager;
-import com.lody.virtual.client.ipc.VirtualStorageManager;
 import com.lody.virtual.client.stub.VASettings;
 import com.lody.virtual.helper.compat.BuildCompat;
 import com.lody.virtual.helper.compat.StorageManagerCompat;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.os.VEnvironment;
 import com.lody.virtual.os.VUserHandle;
+import com.lody.virtual.remote.AppBindInfo;
 import com.lody.virtual.remote.InstalledAppInfo;
+import com.lody.virtual.remote.LaunchTrace;
 import com.lody.virtual.remote.PendingResultData;
+import com.lody.virtual.remote.StubActivityRecord;
 import com.lody.virtual.remote.VDeviceInfo;
 
 import java.io.File;
@@ -100,6 +103,12 @@ public final class VClientImpl extends IVClient.Stub {
     private IBinder token;
     private int vuid;
     private VDeviceInfo deviceInfo;
+    /**
+     * The launch being traced, only accessed on the main thread.
+     */
+    private long mTraceLaunchId;
+    private final List<String> mTracePhases = new ArrayList<>();
+    private final List<Long> mTraceTimes = new ArrayList<>();
     private AppBindData mBoundApplication;
     private Application mInitialApplication;
     private CrashHandler crashHandler;
@@ -179,6 +188,45 @@ public final class VClientImpl extends IVClient.Stub {
         this.vuid = vuid;
     }
 
+    /**
+     * Start to collect the phases of the launch in this process.
+     */
+    public void beginLaunchTrace(long launchId) {
+        if (launchId == 0 || launchId == mTraceLaunchId) {
+            // The launch message may be handled again after binding.
+            return;
+        }
+        mTraceLaunchId = launchId;
+        mTracePhases.clear();
+        mTraceTimes.clear();
+        traceLaunch(LaunchTrace.PHASE_HANDLE_LAUNCH);
+    }
+
+    public void traceLaunch(String phase) {
+        if (mTraceLaunchId != 0) {
+            mTracePhases.add(phase);
+            mTraceTimes.add(SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Called when the onCreate of the launched activity has returned,
+     * report the collected phases to the server with one oneway call.
+     */
+    public void finishLaunchTrace() {
+        if (mTraceLaunchId == 0) {
+            return;
+        }
+        traceLaunch(LaunchTrace.PHASE_ACTIVITY_CREATE);
+        long[] times = new long[mTraceTimes.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = mTraceTimes.get(i);
+        }
+        VActivityManager.get().reportLaunchTrace(mTraceLaunchId,
+                mTracePhases.toArray(new String[mTracePhases.size()]), times);
+        mTraceLaunchId = 0;
+    }
+
     private void handleNewIntent(NewIntentData data) {
         Intent intent;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
@@ -218,10 +266,16 @@ public final class VClientImpl extends IVClient.Stub {
     }
 
     private void bindApplicationNoCheck(String packageName, String processName, ConditionVariable lock) {
-        VDeviceInfo deviceInfo = getDeviceInfo();
         if (processName == null) {
             processName = packageName;
         }
+        traceLaunch(LaunchTrace.PHASE_BIND_APPLICATION);
+        // Fetch all of it in one call.
+        AppBindInfo bindInfo = VActivityManager.get().getAppBindInfo(packageName, processName);
+        if (deviceInfo == null) {
+            deviceInfo = bindInfo.deviceInfo;
+        }
+        VDeviceInfo deviceInfo = getDeviceInfo();
         mTempLock = lock;
         try {
             setupUncaughtHandler();
@@ -240,15 +294,15 @@ public final class VClientImpl extends IVClient.Stub {
                 null
         );
         AppBindData data = new AppBindData();
-        InstalledAppInfo info = VirtualCore.get().getInstalledAppInfo(packageName, 0);
+        InstalledAppInfo info = bindInfo.installedAppInfo;
         if (info == null) {
             new Exception("App not exist!").printStackTrace();
             Process.killProcess(0);
             System.exit(0);
         }
-        data.appInfo = VPackageManager.get().getApplicationInfo(packageName, 0, getUserId(vuid));
+        data.appInfo = bindInfo.appInfo;
         data.processName = processName;
-        data.providers = VPackageManager.get().queryContentProviders(processName, getVUid(), PackageManager.GET_META_DATA);
+        data.providers = bindInfo.providers;
         Log.i(TAG, "Binding application " + data.appInfo.packageName + " (" + data.processName + ")");
         mBoundApplication = data;
         VirtualRuntime.setupRuntime(data.processName, data.appInfo);
@@ -261,11 +315,11 @@ public final class VClientImpl extends IVClient.Stub {
             mirror.android.os.Message.updateCheckRecycle.call(targetSdkVersion);
         }
         if (VASettings.ENABLE_IO_REDIRECT) {
-            startIOUniformer();
+            startIOUniformer(bindInfo.virtualStorage);
         }
         NativeEngine.launchEngine();
         Object mainThread = VirtualCore.mainThread();
-        NativeEngine.startDexOverride();
+        NativeEngine.startDexOverride(bindInfo.installedApps);
         Context context = createPackageContext(data.appInfo.packageName);
         System.setProperty("java.io.tmpdir", context.getCacheDir().getAbsolutePath());
         File codeCacheDir;
@@ -320,6 +374,7 @@ public final class VClientImpl extends IVClient.Stub {
             fixWeChatRecovery(mInitialApplication);
         }
         if (data.providers != null) {
+            traceLaunch(LaunchTrace.PHASE_INSTALL_PROVIDERS);
             installContentProviders(mInitialApplication, data.providers);
         }
         if (lock != null) {
@@ -327,6 +382,7 @@ public final class VClientImpl extends IVClient.Stub {
             mTempLock = null;
         }
         VirtualCore.get().getComponentDelegate().beforeApplicationCreate(mInitialApplication);
+        traceLaunch(LaunchTrace.PHASE_APPLICATION_CREATE);
         try {
             mInstrumentation.callApplicationOnCreate(mInitialApplication);
             InvocationStubManager.getInstance().checkEnv(HCallbackStub.class);
@@ -344,6 +400,7 @@ public final class VClientImpl extends IVClient.Stub {
                                 + ": " + e.toString(), e);
             }
         }
+        traceLaunch(LaunchTrace.PHASE_APPLICATION_CREATED);
         VActivityManager.get().appDoneExecuting();
         VirtualCore.get().getComponentDelegate().afterApplicationCreate(mInitialApplication);
     }
@@ -399,7 +456,7 @@ public final class VClientImpl extends IVClient.Stub {
     }
 
     @SuppressLint("SdCardPath")
-    private void startIOUniformer() {
+    private void startIOUniformer(String vsPath) {
         ApplicationInfo info = mBoundApplication.appInfo;
         int userId = VUserHandle.myUserId();
         String wifiMacAddressFile = deviceInfo.getWifiFile(userId).getPath();
@@ -418,10 +475,7 @@ public final class VClientImpl extends IVClient.Stub {
         NativeEngine.redirectDirectory("/data/data/" + info.packageName + "/lib/", libPath);
         NativeEngine.redirectDirectory("/data/user/0/" + info.packageName + "/lib/", libPath);
 
-        VirtualStorageManager vsManager = VirtualStorageManager.get();
-        String vsPath = vsManager.getVirtualStorage(info.packageName, userId);
-        boolean enable = vsManager.isVirtualStorageEnable(info.packageName, userId);
-        if (enable && vsPath != null) {
+        if (vsPath != null) {
             File vsDirectory = new File(vsPath);
             if (vsDirectory.exists() || vsDirectory.mkdirs()) {
                 HashSet<String> mountPoints = getMountPoints();
@@ -598,6 +652,11 @@ public final class VClientImpl extends IVClient.Stub {
         sendMessage(NEW_INTENT, data);
     }
 
+    @Override
+    public void scheduleLaunchRecord(StubActivityRecord record) {
+        VActivityManager.get().addStubActivityRecord(record);
+    }
+
     @Override
     public void scheduleReceiver(String processName, ComponentName component, Intent intent, PendingResultData resultData) {
         ReceiverData receiverData = new ReceiverData();
@@ -633,7 +692,8 @@ public final class VClientImpl extends IVClient.Stub {
                     "Unable to start receiver " + data.component
                             + ": " + e.toString(), e);
         }
-        VActivityManager.get().broadcastFinish(data.resultData);
+        // Report the result code, data and abort set by the receiver.
+        VActivityManager.get().broadcastFinish(new PendingResultData(result));
     }
 
     @Override
@@ -12,4 +12,9 @@ public interface InstallStrategy {
 	int IGNORE_NEW_VERSION = 0x01 << 4;
 	int DEPEND_SYSTEM_IF_EXIST = 0x01 << 5;
 	int SKIP_DEX_OPT = 0x01 << 6;
+	/**
+	 * Install the package before its signatures are verified, they are verified in the background.
+	 * Until then it has no signatures, if they turn out to be invalid the package is uninstalled.
+	 */
+	int VERIFY_SIGNATURES_LATER = 0x01 << 7;
 }
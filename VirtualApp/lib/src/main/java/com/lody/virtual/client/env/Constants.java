@@ -28,6 +28,19 @@ public class Constants {
 	public static final String ACTION_USER_REMOVED = "virtual." + "android.intent.action.USER_REMOVED";
 	public static final String ACTION_USER_INFO_CHANGED = "virtual." + "android.intent.action.USER_CHANGED";
 	public static final String ACTION_USER_STARTED = "Virtual." + "android.intent.action.USER_STARTED";
+	/**
+	 * The broadcast was not handled inside VA, send it through the system as usual.
+	 */
+	public static final int BROADCAST_NOT_ROUTED = -1;
+	/**
+	 * The static receivers inside VA have received the broadcast,
+	 * but it still needs to go through the system for the registered receivers.
+	 */
+	public static final int BROADCAST_ROUTED_STATIC = 0;
+	/**
+	 * The broadcast has been delivered to every possible receiver inside VA.
+	 */
+	public static final int BROADCAST_ROUTED_ALL = 1;
 	public static String META_KEY_IDENTITY = "X-Identity";
 	public static String META_VALUE_STUB = "Stub-User";
 	/**
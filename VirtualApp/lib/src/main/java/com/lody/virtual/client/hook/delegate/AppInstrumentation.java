@@ -94,6 +94,7 @@ public final class AppInstrumentation extends InstrumentationDelegate implements
             }
         }
         super.callActivityOnCreate(activity, icicle);
+        VClientImpl.get().finishLaunchTrace();
         VirtualCore.get().getComponentDelegate().afterActivityCreate(activity);
     }
 
@@ -103,6 +104,7 @@ public final class AppInstrumentation extends InstrumentationDelegate implements
             BundleCompat.clearParcelledData(icicle);
         }
         super.callActivityOnCreate(activity, icicle, persistentState);
+        VClientImpl.get().finishLaunchTrace();
     }
 
     @Override
@@ -99,10 +99,11 @@ import mirror.android.app.IActivityManager;
         private boolean handleLaunchActivity(Message msg) {
             Object r = msg.obj;
             Intent stubIntent = ActivityThread.ActivityClientRecord.intent.get(r);
-            StubActivityRecord saveInstance = new StubActivityRecord(stubIntent);
+            StubActivityRecord saveInstance = VActivityManager.get().getStubActivityRecord(stubIntent);
             if (saveInstance.intent == null) {
                 return true;
             }
+            VClientImpl.get().beginLaunchTrace(saveInstance.launchId);
             Intent intent = saveInstance.intent;
             ComponentName caller = saveInstance.caller;
             IBinder token = ActivityThread.ActivityClientRecord.token.get(r);
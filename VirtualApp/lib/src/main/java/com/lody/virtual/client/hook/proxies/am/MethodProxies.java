@@ -1536,7 +1536,13 @@ class MethodProxies {
             if (VirtualCore.get().getComponentDelegate() != null) {
                 VirtualCore.get().getComponentDelegate().onSendBroadcast(intent);
             }
-            Intent newIntent = handleIntent(intent);
+            // Ordered broadcasts keep their priority order, abort and result only in the system,
+            // and the sticky ones must be stored by it.
+            int serializedIndex = getSerializedIndex();
+            boolean routable = VASettings.ENABLE_INNER_BROADCAST && args[3] == null
+                    && !Boolean.TRUE.equals(args[serializedIndex])
+                    && !Boolean.TRUE.equals(args[serializedIndex + 1]);
+            Intent newIntent = handleIntent(intent, routable);
             if (newIntent != null) {
                 args[1] = newIntent;
             } else {
@@ -1551,7 +1557,22 @@ class MethodProxies {
         }
 
 
-        private Intent handleIntent(final Intent intent) {
+        /**
+         * @return the index of the serialized argument, the sticky one follows it.
+         */
+        private static int getSerializedIndex() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                // requiredPermissions, appOp, options
+                return 10;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                // requiredPermission, appOp
+                return 9;
+            }
+            return 8;
+        }
+
+        private Intent handleIntent(final Intent intent, boolean routable) {
             final String action = intent.getAction();
             if ("android.intent.action.CREATE_SHORTCUT".equals(action)
                     || "com.android.launcher.action.INSTALL_SHORTCUT".equals(action)) {
@@ -1565,7 +1586,18 @@ class MethodProxies {
             } else if (BadgerManager.handleBadger(intent)) {
                 return null;
             } else {
-                return ComponentUtils.redirectBroadcastIntent(intent, VUserHandle.myUserId());
+                int userId = VUserHandle.myUserId();
+                int routed = routable
+                        ? VActivityManager.get().broadcastIntentInContainer(intent, userId)
+                        : Constants.BROADCAST_NOT_ROUTED;
+                if (routed == Constants.BROADCAST_ROUTED_ALL) {
+                    return null;
+                }
+                Intent newIntent = ComponentUtils.redirectBroadcastIntent(intent, userId);
+                if (routed == Constants.BROADCAST_ROUTED_STATIC) {
+                    newIntent.putExtra("_VA_|_static_routed_", true);
+                }
+                return newIntent;
             }
             return intent;
         }
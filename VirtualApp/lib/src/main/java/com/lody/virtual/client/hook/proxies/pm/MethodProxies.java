@@ -31,6 +31,7 @@ import com.lody.virtual.helper.collection.ArraySet;
 import com.lody.virtual.helper.compat.ParceledListSliceCompat;
 import com.lody.virtual.helper.utils.ArrayUtils;
 import com.lody.virtual.os.VUserHandle;
+import com.lody.virtual.remote.PackageFilter;
 import com.lody.virtual.server.IPackageInstaller;
 import com.lody.virtual.server.pm.installer.SessionInfo;
 import com.lody.virtual.server.pm.installer.SessionParams;
@@ -1050,7 +1051,8 @@ class MethodProxies {
 
             int flags = (Integer) args[0];
             int userId = VUserHandle.myUserId();
-            List<ApplicationInfo> appInfos = VPackageManager.get().getInstalledApplications(flags, userId);
+            List<ApplicationInfo> appInfos = VPackageManager.get().getInstalledApplications(flags, userId,
+                    PackageFilter.fromQueryFlags(flags));
             if (ParceledListSliceCompat.isReturnParceledListSlice(method)) {
                 return ParceledListSliceCompat.create(appInfos);
             }
@@ -1076,7 +1078,8 @@ class MethodProxies {
             } else {
                 packageInfos = VirtualCore.get().getUnHookPackageManager().getInstalledPackages(flags);
             }
-            packageInfos.addAll(VPackageManager.get().getInstalledPackages(flags, userId));
+            packageInfos.addAll(VPackageManager.get().getInstalledPackages(flags, userId,
+                    PackageFilter.fromQueryFlags(flags)));
             if (ParceledListSliceCompat.isReturnParceledListSlice(method)) {
                 return ParceledListSliceCompat.create(packageInfos);
             } else {
@@ -12,23 +12,29 @@ import android.content.pm.ProviderInfo;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.IInterface;
+import android.os.Process;
 import android.os.RemoteException;
 
 import com.lody.virtual.client.core.VirtualCore;
+import com.lody.virtual.client.env.Constants;
 import com.lody.virtual.client.env.VirtualRuntime;
 import com.lody.virtual.client.hook.secondary.ServiceConnectionDelegate;
 import com.lody.virtual.helper.compat.ActivityManagerCompat;
 import com.lody.virtual.helper.ipcbus.IPCSingleton;
 import com.lody.virtual.helper.utils.ComponentUtils;
 import com.lody.virtual.os.VUserHandle;
+import com.lody.virtual.remote.AppBindInfo;
 import com.lody.virtual.remote.AppTaskInfo;
 import com.lody.virtual.remote.BadgerInfo;
+import com.lody.virtual.remote.LaunchTrace;
 import com.lody.virtual.remote.PendingIntentData;
 import com.lody.virtual.remote.PendingResultData;
+import com.lody.virtual.remote.StubActivityRecord;
 import com.lody.virtual.remote.VParceledListSlice;
 import com.lody.virtual.server.interfaces.IActivityManager;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -42,6 +48,12 @@ public class VActivityManager {
 
     private static final VActivityManager sAM = new VActivityManager();
     private final Map<IBinder, ActivityClientRecord> mActivities = new HashMap<IBinder, ActivityClientRecord>(6);
+    private final Map<Long, StubActivityRecord> mLaunchRecords = new LinkedHashMap<Long, StubActivityRecord>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, StubActivityRecord> eldest) {
+            return size() > 16;
+        }
+    };
     private IPCSingleton<IActivityManager> singleton = new IPCSingleton<>(IActivityManager.class);
 
     public static VActivityManager get() {
@@ -107,13 +119,17 @@ public class VActivityManager {
         }
     }
 
+    /**
+     * @return true if the activity has been reported by {@link #onActivityCreate}.
+     */
     public boolean onActivityDestroy(IBinder token) {
-        mActivities.remove(token);
+        ActivityClientRecord r = mActivities.remove(token);
         try {
-            return getService().onActivityDestroyed(VUserHandle.myUserId(), token);
+            getService().onActivityDestroyed(VUserHandle.myUserId(), token);
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
+        return r != null;
     }
 
     public AppTaskInfo getTaskInfo(int taskId) {
@@ -328,7 +344,7 @@ public class VActivityManager {
 
     public void appDoneExecuting() {
         try {
-            getService().appDoneExecuting();
+            getService().appDoneExecuting(Process.myPid());
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -422,6 +438,90 @@ public class VActivityManager {
         }
     }
 
+    public void reportLaunchTrace(long launchId, String[] phases, long[] times) {
+        try {
+            getService().reportLaunchTrace(launchId, phases, times);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the phases of the recent activity launches, oldest first.
+     */
+    public List<LaunchTrace> getRecentLaunchTraces() {
+        try {
+            return getService().getRecentLaunchTraces();
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
+
+    /**
+     * @return p50, p90 and p99 (ms) of the time from the start of a launch
+     * to the phase, see {@link LaunchTrace}.
+     */
+    public long[] getLaunchPercentiles(String phase) {
+        try {
+            return getService().getLaunchPercentiles(phase);
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
+
+    /**
+     * @return the record of the activity launched by a stub intent.
+     */
+    public StubActivityRecord getStubActivityRecord(Intent stub) {
+        StubActivityRecord saved = new StubActivityRecord(stub);
+        if (!StubActivityRecord.hasLaunchToken(stub)) {
+            return saved;
+        }
+        ComponentName component = StubActivityRecord.getComponent(stub);
+        if (saved.launchId == 0 || component == null) {
+            return saved;
+        }
+        StubActivityRecord r;
+        synchronized (mLaunchRecords) {
+            r = mLaunchRecords.get(saved.launchId);
+        }
+        if (r == null) {
+            // Not delivered to this process, e.g. it has been restarted.
+            try {
+                r = getService().getStubActivityRecord(saved.launchId, component, saved.userId);
+            } catch (RemoteException e) {
+                return VirtualRuntime.crash(e);
+            }
+            if (r == null) {
+                return saved;
+            }
+            addStubActivityRecord(r);
+        }
+        if (r.info == null || r.userId != saved.userId
+                || !r.info.packageName.equals(component.getPackageName())) {
+            return saved;
+        }
+        return r;
+    }
+
+    /**
+     * Cache the record of a compact stub intent, delivered by the server
+     * before it starts the stub, the records are also used for the relaunch of the activity.
+     */
+    public void addStubActivityRecord(StubActivityRecord r) {
+        synchronized (mLaunchRecords) {
+            mLaunchRecords.put(r.launchId, r);
+        }
+    }
+
+    public AppBindInfo getAppBindInfo(String packageName, String processName) {
+        try {
+            return getService().getAppBindInfo(packageName, processName);
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
+
     public int initProcess(String packageName, String processName, int userId) {
         try {
             return getService().initProcess(packageName, processName, userId);
@@ -453,6 +553,26 @@ public class VActivityManager {
         }
     }
 
+    public int broadcastIntentInContainer(Intent intent, int userId) {
+        try {
+            return getService().broadcastIntentInContainer(intent, userId);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return Constants.BROADCAST_NOT_ROUTED;
+        }
+    }
+
+    /**
+     * Debug only, the latency and timeout stats of the broadcasts inside VA.
+     */
+    public String dumpBroadcastStats() {
+        try {
+            return getService().dumpBroadcastStats();
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
+
     public String getPackageForIntentSender(IBinder binder) {
         try {
             return getService().getPackageForIntentSender(binder);
@@ -34,6 +34,13 @@ public class VNotificationManager {
                 || mNotificationCompat.dealNotification(id, notification, packageName);
     }
 
+    /**
+     * @return the render counters and time of the notifications fixed in this process.
+     */
+    public String dumpNotificationStats() {
+        return mNotificationCompat.dumpStats();
+    }
+
     public int dealNotificationId(int id, String packageName, String tag, int userId) {
         try {
             return getService().dealNotificationId(id, packageName, tag, userId);
@@ -14,6 +14,7 @@ import android.os.RemoteException;
 
 import com.lody.virtual.client.env.VirtualRuntime;
 import com.lody.virtual.helper.ipcbus.IPCSingleton;
+import com.lody.virtual.remote.PackageFilter;
 import com.lody.virtual.server.IPackageInstaller;
 import com.lody.virtual.server.interfaces.IPackageManager;
 
@@ -60,9 +61,16 @@ public class VPackageManager {
     }
 
     public List<ApplicationInfo> getInstalledApplications(int flags, int userId) {
+        return getInstalledApplications(flags, userId, null);
+    }
+
+    /**
+     * @param filter checked by the server before it generates the infos, null for all packages.
+     */
+    public List<ApplicationInfo> getInstalledApplications(int flags, int userId, PackageFilter filter) {
         try {
             // noinspection unchecked
-            return getService().getInstalledApplications(flags, userId).getList();
+            return getService().getInstalledApplications(flags, userId, filter).getList();
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
@@ -101,8 +109,15 @@ public class VPackageManager {
     }
 
     public List<PackageInfo> getInstalledPackages(int flags, int userId) {
+        return getInstalledPackages(flags, userId, null);
+    }
+
+    /**
+     * @param filter checked by the server before it generates the infos, null for all packages.
+     */
+    public List<PackageInfo> getInstalledPackages(int flags, int userId, PackageFilter filter) {
         try {
-            return getService().getInstalledPackages(flags, userId).getList();
+            return getService().getInstalledPackages(flags, userId, filter).getList();
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
@@ -27,7 +27,7 @@ public abstract class StubActivity extends Activity {
         // It seems that we have conflict with the other Android-Plugin-Framework.
 		Intent stubIntent = getIntent();
         // Try to acquire the actually component information.
-		StubActivityRecord r = new StubActivityRecord(stubIntent);
+		StubActivityRecord r = VActivityManager.get().getStubActivityRecord(stubIntent);
 		if (r.intent != null) {
 			if (TextUtils.equals(r.info.processName, VirtualRuntime.getProcessName()) && r.userId == VUserHandle.myUserId()) {
                 // Retry to inject the HCallback to instead of the exist one.
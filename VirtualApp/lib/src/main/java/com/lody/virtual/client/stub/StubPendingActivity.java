@@ -18,7 +18,7 @@ public class StubPendingActivity extends Activity {
         super.onCreate(savedInstanceState);
         finish();
         Intent intent = getIntent();
-        StubActivityRecord r = new StubActivityRecord(intent);
+        StubActivityRecord r = VActivityManager.get().getStubActivityRecord(intent);
         if (r.intent == null) {
             return;
         }
@@ -44,6 +44,28 @@ public class VASettings {
      */
     public static boolean ENABLE_IO_REDIRECT = true;
 
+    /**
+     * If enable,
+     * broadcasts sent by the apps in VA are delivered to the static receivers
+     * of other apps in VA directly, without a round trip through the system.
+     */
+    public static boolean ENABLE_INNER_BROADCAST = true;
+
+    /**
+     * If enable,
+     * a static receiver whose process is not running gets its process started
+     * to receive the broadcast. Otherwise the broadcast is dropped for it.
+     */
+    public static boolean ENABLE_BROADCAST_COLD_START = false;
+
+    /**
+     * If enable,
+     * the stub intent of an activity launch only carries a launch token, the user and the target component,
+     * the target intent and ActivityInfo are delivered to the process before the stub is started.
+     * Once the server has dropped the token, the activity is relaunched without its original intent.
+     */
+    public static boolean ENABLE_COMPACT_STUB_INTENT = false;
+
     public static String getStubActivityName(int index) {
         return String.format(Locale.ENGLISH, "%s$C%d", STUB_ACTIVITY, index);
     }
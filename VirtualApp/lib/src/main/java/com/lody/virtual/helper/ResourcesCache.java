@@ -0,0 +1,107 @@
+package com.lody.virtual.helper;
+
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+
+import com.lody.virtual.client.core.VirtualCore;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Resources of the installed APKs, shared by everyone in the process
+ * who only needs to read some resources of a package.
+ * <p>
+ * An entry is keyed by the APK path and only used with the configuration it was created with.
+ * It's created again when the configuration or the APK file changes.
+ * The cache is bounded both by the count and by the total size of the APKs.
+ *
+ * @author Lody
+ */
+public final class ResourcesCache {
+
+    private static final int MAX_ENTRIES = 16;
+    private static final long MAX_TOTAL_SIZE = 128 * 1024 * 1024;
+
+    private static final ResourcesCache sInstance = new ResourcesCache();
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true);
+    private long mTotalSize;
+    private int mHits;
+    private int mMisses;
+
+    public static ResourcesCache get() {
+        return sInstance;
+    }
+
+    public synchronized Resources getResources(String apkPath) {
+        File apk = new File(apkPath);
+        long lastModified = apk.lastModified();
+        Resources hostRes = VirtualCore.get().getContext().getResources();
+        Configuration config = hostRes.getConfiguration();
+        Entry entry = mEntries.get(apkPath);
+        if (entry != null) {
+            if (entry.lastModified == lastModified && entry.config.equals(config)) {
+                mHits++;
+                return entry.resources;
+            }
+            removeEntry(apkPath);
+        }
+        mMisses++;
+        AssetManager assets = mirror.android.content.res.AssetManager.ctor.newInstance();
+        mirror.android.content.res.AssetManager.addAssetPath.call(assets, apkPath);
+        Resources resources = new Resources(assets, hostRes.getDisplayMetrics(), config);
+        long size = apk.length();
+        if (size <= MAX_TOTAL_SIZE) {
+            mEntries.put(apkPath, new Entry(resources, new Configuration(config), lastModified, size));
+            mTotalSize += size;
+            trimToSize();
+        }
+        return resources;
+    }
+
+    /**
+     * Drop the Resources of an APK which is installed again or removed.
+     */
+    public synchronized void remove(String apkPath) {
+        removeEntry(apkPath);
+    }
+
+    public synchronized String dumpStats() {
+        return "size " + mEntries.size() + ", apk bytes " + mTotalSize
+                + ", hits " + mHits + ", misses " + mMisses;
+    }
+
+    private void removeEntry(String apkPath) {
+        Entry entry = mEntries.remove(apkPath);
+        if (entry != null) {
+            mTotalSize -= entry.size;
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mTotalSize > MAX_TOTAL_SIZE) && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            mTotalSize -= eldest.size;
+        }
+    }
+
+    private static final class Entry {
+        final Resources resources;
+        final Configuration config;
+        final long lastModified;
+        final long size;
+
+        Entry(Resources resources, Configuration config, long lastModified, long size) {
+            this.resources = resources;
+            this.config = config;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+}
@@ -22,6 +22,7 @@ public class IPCMethod {
     private String interfaceName;
     private MethodParamConverter[] converters;
     private MethodParamConverter resultConverter;
+    private boolean oneWay;
 
 
     public IPCMethod(int code, Method method, String interfaceName) {
@@ -39,6 +40,7 @@ public class IPCMethod {
         if (isAidlParam(returnType)) {
             resultConverter = new AidlParamConverter(returnType);
         }
+        oneWay = returnType == void.class && method.isAnnotationPresent(OneWay.class);
     }
 
     private boolean isAidlParam(Class<?> type) {
@@ -66,6 +68,10 @@ public class IPCMethod {
         }
         try {
             Object res = method.invoke(server, parameters);
+            if (oneWay) {
+                // Nobody is waiting for the reply.
+                return;
+            }
             reply.writeNoException();
             reply.writeValue(res);
         } catch (IllegalAccessException e) {
@@ -98,6 +104,10 @@ public class IPCMethod {
     }
 
     public Object callRemote(IBinder server, Object[] args) throws RemoteException {
+        if (oneWay) {
+            callRemoteOneWay(server, args);
+            return null;
+        }
         Parcel data = Parcel.obtain();
         Parcel reply = Parcel.obtain();
         Object result;
@@ -117,6 +127,17 @@ public class IPCMethod {
         return result;
     }
 
+    private void callRemoteOneWay(IBinder server, Object[] args) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(interfaceName);
+            data.writeArray(args);
+            server.transact(code, data, null, IBinder.FLAG_ONEWAY);
+        } finally {
+            data.recycle();
+        }
+    }
+
     private Object readValue(Parcel replay) {
         Object result = replay.readValue(getClass().getClassLoader());
         if (result instanceof Parcelable[]) {
@@ -0,0 +1,20 @@
+package com.lody.virtual.helper.ipcbus;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Mark a void method of a server interface as oneway,
+ * the caller doesn't wait for the server to handle it.
+ * The oneway calls to the same server are handled in order,
+ * but the server can't trust {@link android.os.Binder#getCallingPid()}.
+ *
+ * @author Lody
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface OneWay {
+
+}
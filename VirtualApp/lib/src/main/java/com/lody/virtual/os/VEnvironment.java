@@ -84,6 +84,18 @@ public class VEnvironment {
         return new File(getSystemSecureDirectory(), "account-list.ini");
     }
 
+    public static File getAccountDirectory() {
+        return ensureCreated(new File(getSystemSecureDirectory(), "accounts"));
+    }
+
+    public static File getAccountListFile(int userId) {
+        return new File(getAccountDirectory(), userId + ".ini");
+    }
+
+    public static File getAccountJournalFile(int userId) {
+        return new File(getAccountDirectory(), userId + ".journal");
+    }
+
     public static File getVirtualLocationFile() {
         return new File(getSystemSecureDirectory(), "virtual-loc.ini");
     }
@@ -136,6 +148,10 @@ public class VEnvironment {
         return new File(getDataAppPackageDirectory(packageName), "signature.ini");
     }
 
+    public static File getFingerprintFile(String packageName) {
+        return new File(getDataAppPackageDirectory(packageName), "fingerprint.ini");
+    }
+
     public static File getUserSystemDirectory() {
         return USER_DIRECTORY;
     }
@@ -0,0 +1,70 @@
+package com.lody.virtual.remote;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ProviderInfo;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.List;
+
+/**
+ * Everything a process needs to bind its application,
+ * prepared by the server when it starts the process.
+ *
+ * @author Lody
+ */
+public class AppBindInfo implements Parcelable {
+    public static final Parcelable.Creator<AppBindInfo> CREATOR = new Parcelable.Creator<AppBindInfo>() {
+        @Override
+        public AppBindInfo createFromParcel(Parcel source) {
+            return new AppBindInfo(source);
+        }
+
+        @Override
+        public AppBindInfo[] newArray(int size) {
+            return new AppBindInfo[size];
+        }
+    };
+    public String processName;
+    public InstalledAppInfo installedAppInfo;
+    public ApplicationInfo appInfo;
+    public List<ProviderInfo> providers;
+    public VDeviceInfo deviceInfo;
+    /**
+     * All of the installed apps, used by the dex override.
+     */
+    public List<InstalledAppInfo> installedApps;
+    /**
+     * The path of the virtual storage, null if it is disabled.
+     */
+    public String virtualStorage;
+
+    public AppBindInfo() {
+    }
+
+    protected AppBindInfo(Parcel in) {
+        processName = in.readString();
+        installedAppInfo = in.readParcelable(InstalledAppInfo.class.getClassLoader());
+        appInfo = in.readParcelable(ApplicationInfo.class.getClassLoader());
+        providers = in.createTypedArrayList(ProviderInfo.CREATOR);
+        deviceInfo = in.readParcelable(VDeviceInfo.class.getClassLoader());
+        installedApps = in.createTypedArrayList(InstalledAppInfo.CREATOR);
+        virtualStorage = in.readString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(processName);
+        dest.writeParcelable(installedAppInfo, flags);
+        dest.writeParcelable(appInfo, flags);
+        dest.writeTypedList(providers);
+        dest.writeParcelable(deviceInfo, flags);
+        dest.writeTypedList(installedApps);
+        dest.writeString(virtualStorage);
+    }
+}
@@ -0,0 +1,72 @@
+package com.lody.virtual.remote;
+
+import android.content.ComponentName;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The phases of one activity launch, the times are {@link android.os.SystemClock#uptimeMillis()}
+ * which is shared by the server and the guest processes.
+ *
+ * @author Lody
+ */
+public class LaunchTrace implements Parcelable {
+
+    public static final String PHASE_START_ACTIVITY = "start_activity";
+    public static final String PHASE_PROCESS_START = "process_start";
+    public static final String PHASE_STUB_INIT = "stub_init";
+    public static final String PHASE_PROCESS_READY = "process_ready";
+    public static final String PHASE_HANDLE_LAUNCH = "handle_launch";
+    public static final String PHASE_BIND_APPLICATION = "bind_application";
+    public static final String PHASE_INSTALL_PROVIDERS = "install_providers";
+    public static final String PHASE_APPLICATION_CREATE = "application_create";
+    public static final String PHASE_APPLICATION_CREATED = "application_created";
+    public static final String PHASE_ACTIVITY_CREATE = "activity_create";
+
+    public static final Parcelable.Creator<LaunchTrace> CREATOR = new Parcelable.Creator<LaunchTrace>() {
+        @Override
+        public LaunchTrace createFromParcel(Parcel source) {
+            return new LaunchTrace(source);
+        }
+
+        @Override
+        public LaunchTrace[] newArray(int size) {
+            return new LaunchTrace[size];
+        }
+    };
+    public long launchId;
+    public ComponentName component;
+    public int userId;
+    public String[] phases;
+    public long[] times;
+
+    public LaunchTrace(long launchId, ComponentName component, int userId, String[] phases, long[] times) {
+        this.launchId = launchId;
+        this.component = component;
+        this.userId = userId;
+        this.phases = phases;
+        this.times = times;
+    }
+
+    protected LaunchTrace(Parcel in) {
+        launchId = in.readLong();
+        component = in.readParcelable(ComponentName.class.getClassLoader());
+        userId = in.readInt();
+        phases = in.createStringArray();
+        times = in.createLongArray();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(launchId);
+        dest.writeParcelable(component, flags);
+        dest.writeInt(userId);
+        dest.writeStringArray(phases);
+        dest.writeLongArray(times);
+    }
+}
@@ -0,0 +1,87 @@
+package com.lody.virtual.remote;
+
+import android.content.pm.ApplicationInfo;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A filter of the installed packages which is checked by the server
+ * before it generates any info, so the packages it rejects cost nothing.
+ *
+ * @author Lody
+ */
+public final class PackageFilter implements Parcelable {
+
+    public static final Parcelable.Creator<PackageFilter> CREATOR = new Parcelable.Creator<PackageFilter>() {
+        @Override
+        public PackageFilter createFromParcel(Parcel source) {
+            return new PackageFilter(source);
+        }
+
+        @Override
+        public PackageFilter[] newArray(int size) {
+            return new PackageFilter[size];
+        }
+    };
+
+    /**
+     * Only the packages whose name starts with it, null for all packages.
+     */
+    public String packagePrefix;
+    /**
+     * The {@link ApplicationInfo#flags} which must all be set.
+     */
+    public int requiredFlags;
+    /**
+     * The {@link ApplicationInfo#flags} which must all be cleared.
+     */
+    public int excludedFlags;
+
+    /**
+     * PackageManager#MATCH_SYSTEM_ONLY, a system api since N.
+     */
+    private static final int MATCH_SYSTEM_ONLY = 0x00100000;
+
+    public PackageFilter(String packagePrefix, int requiredFlags, int excludedFlags) {
+        this.packagePrefix = packagePrefix;
+        this.requiredFlags = requiredFlags;
+        this.excludedFlags = excludedFlags;
+    }
+
+    protected PackageFilter(Parcel in) {
+        this.packagePrefix = in.readString();
+        this.requiredFlags = in.readInt();
+        this.excludedFlags = in.readInt();
+    }
+
+    /**
+     * @return the filter asked by the flags of a PackageManager query, null if they don't filter anything.
+     */
+    public static PackageFilter fromQueryFlags(int flags) {
+        if ((flags & MATCH_SYSTEM_ONLY) != 0) {
+            return new PackageFilter(null, ApplicationInfo.FLAG_SYSTEM, 0);
+        }
+        return null;
+    }
+
+    public boolean accept(String packageName, ApplicationInfo appInfo) {
+        if (packagePrefix != null && !packageName.startsWith(packagePrefix)) {
+            return false;
+        }
+        int flags = appInfo != null ? appInfo.flags : 0;
+        return (flags & requiredFlags) == requiredFlags
+                && (flags & excludedFlags) == 0;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(this.packagePrefix);
+        dest.writeInt(this.requiredFlags);
+        dest.writeInt(this.excludedFlags);
+    }
+}
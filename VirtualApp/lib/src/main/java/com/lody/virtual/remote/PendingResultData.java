@@ -23,6 +23,11 @@ public class PendingResultData implements Parcelable {
             return new PendingResultData[size];
         }
     };
+    /**
+     * Same as BroadcastReceiver.PendingResult.TYPE_UNREGISTERED,
+     * finishing such a result never reports back to the system AMS.
+     */
+    public static final int TYPE_UNREGISTERED = 2;
     public int mType;
     public boolean mOrderedHint;
     public boolean mInitialStickyHint;
@@ -73,6 +78,16 @@ public class PendingResultData implements Parcelable {
     }
 
 
+    /**
+     * Create a result for a broadcast which is delivered inside VA
+     * and is unknown to the system AMS.
+     */
+    public PendingResultData(IBinder token, int sendingUser) {
+        this.mType = TYPE_UNREGISTERED;
+        this.mToken = token;
+        this.mSendingUser = sendingUser;
+    }
+
     protected PendingResultData(Parcel in) {
         this.mType = in.readInt();
         this.mOrderedHint = in.readByte() != 0;
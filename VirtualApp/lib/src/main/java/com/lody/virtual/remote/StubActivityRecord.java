@@ -3,16 +3,33 @@ package com.lody.virtual.remote;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.os.Parcel;
+import android.os.Parcelable;
 
 /**
  * @author Lody
  */
 
-public class StubActivityRecord  {
+public class StubActivityRecord implements Parcelable {
+        public static final Parcelable.Creator<StubActivityRecord> CREATOR = new Parcelable.Creator<StubActivityRecord>() {
+            @Override
+            public StubActivityRecord createFromParcel(Parcel source) {
+                return new StubActivityRecord(source);
+            }
+
+            @Override
+            public StubActivityRecord[] newArray(int size) {
+                return new StubActivityRecord[size];
+            }
+        };
         public Intent intent;
         public ActivityInfo info;
         public ComponentName caller;
         public int userId;
+        /**
+         * The id of the launch trace, 0 if unknown.
+         */
+        public long launchId;
 
         public StubActivityRecord(Intent intent, ActivityInfo info, ComponentName caller, int userId) {
             this.intent = intent;
@@ -22,10 +39,35 @@ public class StubActivityRecord  {
         }
 
         public StubActivityRecord(Intent stub) {
+            this.launchId = stub.getLongExtra("_VA_|_launch_id_", 0);
+            this.userId = stub.getIntExtra("_VA_|_user_id_", 0);
+            if (hasLaunchToken(stub)) {
+                // Only the token is in the stub, the record is delivered to the process.
+                return;
+            }
             this.intent = stub.getParcelableExtra("_VA_|_intent_");
             this.info = stub.getParcelableExtra("_VA_|_info_");
             this.caller = stub.getParcelableExtra("_VA_|_caller_");
-            this.userId = stub.getIntExtra("_VA_|_user_id_", 0);
+        }
+
+        protected StubActivityRecord(Parcel in) {
+            intent = in.readParcelable(Intent.class.getClassLoader());
+            info = in.readParcelable(ActivityInfo.class.getClassLoader());
+            caller = in.readParcelable(ComponentName.class.getClassLoader());
+            userId = in.readInt();
+            launchId = in.readLong();
+        }
+
+        /**
+         * @return true if the stub only carries the launch token instead of the record.
+         */
+        public static boolean hasLaunchToken(Intent stub) {
+            return stub.getBooleanExtra("_VA_|_compact_", false);
+        }
+
+        public static ComponentName getComponent(Intent stub) {
+            // The stub intent's type is the flattened target component.
+            return stub.getType() != null ? ComponentName.unflattenFromString(stub.getType()) : null;
         }
 
     public void saveToIntent(Intent stub) {
@@ -33,5 +75,29 @@ public class StubActivityRecord  {
         stub.putExtra("_VA_|_info_", info);
         stub.putExtra("_VA_|_caller_", caller);
         stub.putExtra("_VA_|_user_id_", userId);
+        stub.putExtra("_VA_|_launch_id_", launchId);
+    }
+
+    /**
+     * Only save the launch token and the user, the target component is the type of the stub.
+     */
+    public void saveTokenToIntent(Intent stub) {
+        stub.putExtra("_VA_|_user_id_", userId);
+        stub.putExtra("_VA_|_launch_id_", launchId);
+        stub.putExtra("_VA_|_compact_", true);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeParcelable(intent, flags);
+        dest.writeParcelable(info, flags);
+        dest.writeParcelable(caller, flags);
+        dest.writeInt(userId);
+        dest.writeLong(launchId);
     }
 }
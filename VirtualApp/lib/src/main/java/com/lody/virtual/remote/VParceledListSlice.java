@@ -52,6 +52,10 @@ public class VParceledListSlice<T extends Parcelable> implements Parcelable {
 	private static boolean DEBUG = false;
 	private final List<T> mList;
 
+	/**
+	 * The list may create its items in {@link List#get(int)}, the items which
+	 * don't fit in the first transaction are only read when the other side fetches them.
+	 */
 	public VParceledListSlice(List<T> list) {
 		mList = list;
 	}
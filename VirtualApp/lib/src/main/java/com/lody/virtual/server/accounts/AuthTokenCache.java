@@ -0,0 +1,188 @@
+package com.lody.virtual.server.accounts;
+
+import android.accounts.Account;
+
+import com.lody.virtual.helper.compat.ObjectsCompat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The custom auth tokens handed out by the authenticators, keyed by
+ * (userId, account, authTokenType, packageName).
+ * <p>
+ * The tokens are also indexed by account and by value for the purges, and put in
+ * buckets of {@link #BUCKET_MILLIS} by their expiry time. The buckets which are
+ * over are dropped as a whole, so expiring never looks at the live tokens.
+ *
+ * @author Lody
+ */
+class AuthTokenCache {
+
+    private static final long BUCKET_MILLIS = 60 * 1000L;
+
+    private final HashMap<Key, Record> mRecords = new HashMap<>();
+    /**
+     * The keys of each account, the account keys have neither a token type nor a package.
+     */
+    private final HashMap<Key, HashSet<Key>> mByAccount = new HashMap<>();
+    private final HashMap<String, HashSet<Key>> mByToken = new HashMap<>();
+    private final TreeMap<Long, HashSet<Key>> mByExpiryBucket = new TreeMap<>();
+    private int mHits;
+    private int mMisses;
+    private int mExpired;
+
+    synchronized String get(int userId, Account account, String authTokenType, String packageName) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Key key = new Key(userId, account, authTokenType, packageName);
+        Record record = mRecords.get(key);
+        if (record != null && record.expiryEpochMillis < now) {
+            remove(key);
+            mExpired++;
+            record = null;
+        }
+        if (record == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return record.authToken;
+    }
+
+    synchronized void put(int userId, Account account, String authTokenType, String packageName,
+                          String authToken, long expiryEpochMillis) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Key key = new Key(userId, account, authTokenType, packageName);
+        remove(key);
+        if (authToken != null && expiryEpochMillis > now) {
+            add(key, new Record(authToken, expiryEpochMillis));
+        }
+    }
+
+    /**
+     * Drop the tokens of an account, when its password changes or it's removed.
+     */
+    synchronized void removeAccount(int userId, Account account) {
+        for (Key key : keysOf(mByAccount.get(new Key(userId, account, null, null)))) {
+            remove(key);
+        }
+    }
+
+    synchronized void renameAccount(int userId, Account account, Account newAccount) {
+        for (Key key : keysOf(mByAccount.get(new Key(userId, account, null, null)))) {
+            Record record = remove(key);
+            add(new Key(userId, newAccount, key.authTokenType, key.packageName), record);
+        }
+    }
+
+    synchronized void invalidate(int userId, String accountType, String authToken) {
+        for (Key key : keysOf(mByToken.get(authToken))) {
+            if (key.userId == userId && key.account.type.equals(accountType)) {
+                remove(key);
+            }
+        }
+    }
+
+    synchronized String dumpStats() {
+        return "size " + mRecords.size() + ", buckets " + mByExpiryBucket.size()
+                + ", hits " + mHits + ", misses " + mMisses + ", expired " + mExpired;
+    }
+
+    private void expire(long now) {
+        long currentBucket = now / BUCKET_MILLIS;
+        while (!mByExpiryBucket.isEmpty() && mByExpiryBucket.firstKey() < currentBucket) {
+            for (Key key : keysOf(mByExpiryBucket.firstEntry().getValue())) {
+                remove(key);
+                mExpired++;
+            }
+        }
+    }
+
+    private void add(Key key, Record record) {
+        mRecords.put(key, record);
+        addToIndex(mByAccount, new Key(key.userId, key.account, null, null), key);
+        addToIndex(mByToken, record.authToken, key);
+        addToIndex(mByExpiryBucket, record.expiryEpochMillis / BUCKET_MILLIS, key);
+    }
+
+    private Record remove(Key key) {
+        Record record = mRecords.remove(key);
+        if (record != null) {
+            removeFromIndex(mByAccount, new Key(key.userId, key.account, null, null), key);
+            removeFromIndex(mByToken, record.authToken, key);
+            removeFromIndex(mByExpiryBucket, record.expiryEpochMillis / BUCKET_MILLIS, key);
+        }
+        return record;
+    }
+
+    private static <K> void addToIndex(Map<K, HashSet<Key>> index, K indexKey, Key key) {
+        HashSet<Key> keys = index.get(indexKey);
+        if (keys == null) {
+            keys = new HashSet<>(2);
+            index.put(indexKey, keys);
+        }
+        keys.add(key);
+    }
+
+    private static <K> void removeFromIndex(Map<K, HashSet<Key>> index, K indexKey, Key key) {
+        HashSet<Key> keys = index.get(indexKey);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            index.remove(indexKey);
+        }
+    }
+
+    /**
+     * A copy of the keys in an index, they are removed while iterating.
+     */
+    private static List<Key> keysOf(HashSet<Key> keys) {
+        return keys != null ? new ArrayList<>(keys) : new ArrayList<Key>(0);
+    }
+
+    private static final class Record {
+        final String authToken;
+        final long expiryEpochMillis;
+
+        Record(String authToken, long expiryEpochMillis) {
+            this.authToken = authToken;
+            this.expiryEpochMillis = expiryEpochMillis;
+        }
+    }
+
+    private static final class Key {
+        final int userId;
+        final Account account;
+        final String authTokenType;
+        final String packageName;
+
+        Key(int userId, Account account, String authTokenType, String packageName) {
+            this.userId = userId;
+            this.account = account;
+            this.authTokenType = authTokenType;
+            this.packageName = packageName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return userId == that.userId
+                    && account.equals(that.account)
+                    && ObjectsCompat.equals(authTokenType, that.authTokenType)
+                    && ObjectsCompat.equals(packageName, that.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((userId * 31 + account.hashCode()) * 31
+                    + (authTokenType != null ? authTokenType.hashCode() : 0)) * 31
+                    + (packageName != null ? packageName.hashCode() : 0);
+        }
+    }
+}
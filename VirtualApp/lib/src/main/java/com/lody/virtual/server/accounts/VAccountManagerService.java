@@ -19,39 +19,33 @@ import android.content.res.XmlResourceParser;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
-import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.Xml;
 
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.helper.compat.AccountManagerCompat;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.os.VBinder;
-import com.lody.virtual.os.VEnvironment;
 import com.lody.virtual.os.VUserHandle;
 import com.lody.virtual.server.am.VActivityManagerService;
 import com.lody.virtual.server.interfaces.IAccountManager;
+import com.lody.virtual.server.pm.PackageCacheManager;
+import com.lody.virtual.server.pm.PackageSetting;
 import com.lody.virtual.server.pm.VPackageManagerService;
 
 import org.xmlpull.v1.XmlPullParser;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 import mirror.com.android.internal.R_Hide;
@@ -67,8 +61,8 @@ public class VAccountManagerService implements IAccountManager {
     private static final AtomicReference<VAccountManagerService> sInstance = new AtomicReference<>();
     private static final long CHECK_IN_TIME = 30 * 24 * 60 * 1000L;
     private static final String TAG = VAccountManagerService.class.getSimpleName();
-    private final SparseArray<List<VAccount>> accountsByUserId = new SparseArray<>();
-    private final LinkedList<AuthTokenRecord> authTokenRecords = new LinkedList<>();
+    private final VAccountStore accountStore = new VAccountStore();
+    private final AuthTokenCache authTokenCache = new AuthTokenCache();
     private final LinkedHashMap<String, Session> mSessions = new LinkedHashMap<>();
     private final AuthenticatorCache cache = new AuthenticatorCache();
     private Context mContext = VirtualCore.get().getContext();
@@ -152,7 +146,7 @@ public class VAccountManagerService implements IAccountManager {
     @Override
     public final String getPreviousName(int userId, Account account) {
         if (account == null) throw new IllegalArgumentException("account is null");
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             String previousName = null;
             VAccount vAccount = getAccount(userId, account);
             if (vAccount != null) {
@@ -171,14 +165,11 @@ public class VAccountManagerService implements IAccountManager {
 
 
     private List<Account> getAccountList(int userId, String type) {
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             List<Account> accounts = new ArrayList<>();
-            List<VAccount> vAccounts = accountsByUserId.get(userId);
-            if (vAccounts != null) {
-                for (VAccount vAccount : vAccounts) {
-                    if (type == null || vAccount.type.equals(type)) {
-                        accounts.add(new Account(vAccount.name, vAccount.type));
-                    }
+            for (VAccount vAccount : accountStore.getAccounts(userId)) {
+                if (type == null || vAccount.type.equals(type)) {
+                    accounts.add(new Account(vAccount.name, vAccount.type));
                 }
             }
             return accounts;
@@ -225,7 +216,7 @@ public class VAccountManagerService implements IAccountManager {
         }
         if (!customTokens) {
             VAccount vAccount;
-            synchronized (accountsByUserId) {
+            synchronized (accountStore) {
                 vAccount = getAccount(userId, account);
             }
             String authToken = vAccount != null ? vAccount.authTokens.get(authTokenType) : null;
@@ -278,17 +269,11 @@ public class VAccountManagerService implements IAccountManager {
                             return;
                         }
                         if (!customTokens) {
-                            synchronized (accountsByUserId) {
+                            synchronized (accountStore) {
                                 VAccount account = getAccount(userId, name, type);
                                 if (account == null) {
-                                    List<VAccount> accounts = accountsByUserId.get(userId);
-                                    if (accounts == null) {
-                                        accounts = new ArrayList<>();
-                                        accountsByUserId.put(userId, accounts);
-                                    }
                                     account = new VAccount(userId, new Account(name, type));
-                                    accounts.add(account);
-                                    saveAllAccounts();
+                                    accountStore.add(account);
                                 }
                             }
                         }
@@ -296,11 +281,7 @@ public class VAccountManagerService implements IAccountManager {
                                 AccountManagerCompat.KEY_CUSTOM_TOKEN_EXPIRY, 0L);
                         if (customTokens
                                 && expiryMillis > System.currentTimeMillis()) {
-                            AuthTokenRecord record = new AuthTokenRecord(userId, account, authTokenType, callerPkg, authToken, expiryMillis);
-                            synchronized (authTokenRecords) {
-                                authTokenRecords.remove(record);
-                                authTokenRecords.add(record);
-                            }
+                            authTokenCache.put(userId, account, authTokenType, callerPkg, authToken, expiryMillis);
                         }
                     }
                     Intent intent = result.getParcelable(AccountManager.KEY_INTENT);
@@ -321,21 +302,11 @@ public class VAccountManagerService implements IAccountManager {
     }
 
     private void setPasswordInternal(int userId, Account account, String password) {
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             VAccount vAccount = getAccount(userId, account);
             if (vAccount != null) {
-                vAccount.password = password;
-                vAccount.authTokens.clear();
-                saveAllAccounts();
-                synchronized (authTokenRecords) {
-                    Iterator<AuthTokenRecord> iterator = authTokenRecords.iterator();
-                    while (iterator.hasNext()) {
-                        AuthTokenRecord record = iterator.next();
-                        if (record.userId == userId && record.account.equals(account)) {
-                            iterator.remove();
-                        }
-                    }
-                }
+                accountStore.setPassword(vAccount, password);
+                authTokenCache.removeAccount(userId, account);
                 sendAccountsChangedBroadcast(userId);
             }
         }
@@ -345,12 +316,11 @@ public class VAccountManagerService implements IAccountManager {
     public void setAuthToken(int userId, Account account, String authTokenType, String authToken) {
         if (account == null) throw new IllegalArgumentException("account is null");
         if (authTokenType == null) throw new IllegalArgumentException("authTokenType is null");
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             VAccount vAccount = getAccount(userId, account);
             if (vAccount != null) {
                 // FIXME: cancelNotification
-                vAccount.authTokens.put(authTokenType, authToken);
-                this.saveAllAccounts();
+                accountStore.setAuthToken(vAccount, authTokenType, authToken);
             }
         }
     }
@@ -360,11 +330,10 @@ public class VAccountManagerService implements IAccountManager {
     public void setUserData(int userId, Account account, String key, String value) {
         if (key == null) throw new IllegalArgumentException("key is null");
         if (account == null) throw new IllegalArgumentException("account is null");
-        VAccount vAccount = getAccount(userId, account);
-        if (vAccount != null) {
-            synchronized (accountsByUserId) {
-                vAccount.userDatas.put(key, value);
-                saveAllAccounts();
+        synchronized (accountStore) {
+            VAccount vAccount = getAccount(userId, account);
+            if (vAccount != null) {
+                accountStore.setUserData(vAccount, key, value);
             }
         }
     }
@@ -459,7 +428,7 @@ public class VAccountManagerService implements IAccountManager {
     @Override
     public String getPassword(int userId, Account account) {
         if (account == null) throw new IllegalArgumentException("account is null");
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             VAccount vAccount = getAccount(userId, account);
             if (vAccount != null) {
                 return vAccount.password;
@@ -472,7 +441,7 @@ public class VAccountManagerService implements IAccountManager {
     public String getUserData(int userId, Account account, String key) {
         if (account == null) throw new IllegalArgumentException("account is null");
         if (key == null) throw new IllegalArgumentException("key is null");
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             VAccount vAccount = getAccount(userId, account);
             if (vAccount != null) {
                 return vAccount.userDatas.get(key);
@@ -696,19 +665,11 @@ public class VAccountManagerService implements IAccountManager {
     }
 
     private boolean removeAccountInternal(int userId, Account account) {
-        List<VAccount> accounts = accountsByUserId.get(userId);
-        if (accounts != null) {
-            Iterator<VAccount> iterator = accounts.iterator();
-            while (iterator.hasNext()) {
-                VAccount vAccount = iterator.next();
-                if (userId == vAccount.userId
-                        && TextUtils.equals(vAccount.name, account.name)
-                        && TextUtils.equals(account.type, vAccount.type)) {
-                    iterator.remove();
-                    saveAllAccounts();
-                    sendAccountsChangedBroadcast(userId);
-                    return true;
-                }
+        synchronized (accountStore) {
+            if (accountStore.remove(userId, account.name, account.type)) {
+                authTokenCache.removeAccount(userId, account);
+                sendAccountsChangedBroadcast(userId);
+                return true;
             }
         }
         return false;
@@ -720,11 +681,10 @@ public class VAccountManagerService implements IAccountManager {
         if (account == null) {
             throw new IllegalArgumentException("account is null");
         }
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             VAccount vAccount = getAccount(userId, account);
             if (vAccount != null) {
-                vAccount.lastAuthenticatedTime = System.currentTimeMillis();
-                saveAllAccounts();
+                accountStore.setLastAuthenticatedTime(vAccount, System.currentTimeMillis());
                 return true;
             }
             return false;
@@ -735,50 +695,25 @@ public class VAccountManagerService implements IAccountManager {
     public void invalidateAuthToken(int userId, String accountType, String authToken) {
         if (accountType == null) throw new IllegalArgumentException("accountType is null");
         if (authToken == null) throw new IllegalArgumentException("authToken is null");
-        synchronized (accountsByUserId) {
-            List<VAccount> accounts = accountsByUserId.get(userId);
-            if (accounts != null) {
-                boolean changed = false;
-                for (VAccount account : accounts) {
-                    if (account.type.equals(accountType)) {
-                        account.authTokens.values().remove(authToken);
-                        changed = true;
-                    }
-                }
-                if (changed) {
-                    saveAllAccounts();
-                }
-            }
-            synchronized (authTokenRecords) {
-                Iterator<AuthTokenRecord> iterator = authTokenRecords.iterator();
-                while (iterator.hasNext()) {
-                    AuthTokenRecord record = iterator.next();
-                    if (record.userId == userId && record.authTokenType.equals(accountType)
-                            && record.authToken.equals(authToken)) {
-                        iterator.remove();
-                    }
+        synchronized (accountStore) {
+            for (VAccount account : accountStore.getAccounts(userId)) {
+                if (account.type.equals(accountType) && account.authTokens.values().remove(authToken)) {
+                    accountStore.update(account);
                 }
             }
+            authTokenCache.invalidate(userId, accountType, authToken);
         }
     }
 
 
     private Account renameAccountInternal(int userId, Account accountToRename, String newName) {
         // TODO: Cancel Notification
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             VAccount vAccount = getAccount(userId, accountToRename);
             if (vAccount != null) {
-                vAccount.previousName = vAccount.name;
-                vAccount.name = newName;
-                saveAllAccounts();
+                accountStore.rename(vAccount, newName);
                 Account newAccount = new Account(vAccount.name, vAccount.type);
-                synchronized (authTokenRecords) {
-                    for (AuthTokenRecord record : authTokenRecords) {
-                        if (record.userId == userId && record.account.equals(accountToRename)) {
-                            record.account = newAccount;
-                        }
-                    }
-                }
+                authTokenCache.renameAccount(userId, accountToRename, newAccount);
                 sendAccountsChangedBroadcast(userId);
                 return newAccount;
             }
@@ -790,7 +725,7 @@ public class VAccountManagerService implements IAccountManager {
     public String peekAuthToken(int userId, Account account, String authTokenType) {
         if (account == null) throw new IllegalArgumentException("account is null");
         if (authTokenType == null) throw new IllegalArgumentException("authTokenType is null");
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             VAccount vAccount = getAccount(userId, account);
             if (vAccount != null) {
                 return vAccount.authTokens.get(authTokenType);
@@ -801,21 +736,11 @@ public class VAccountManagerService implements IAccountManager {
 
 
     private String getCustomAuthToken(int userId, Account account, String authTokenType, String packageName) {
-        AuthTokenRecord record = new AuthTokenRecord(userId, account, authTokenType, packageName);
-        String authToken = null;
-        long now = System.currentTimeMillis();
-        synchronized (authTokenRecords) {
-            Iterator<AuthTokenRecord> iterator = authTokenRecords.iterator();
-            while (iterator.hasNext()) {
-                AuthTokenRecord one = iterator.next();
-                if (one.expiryEpochMillis > 0 && one.expiryEpochMillis < now) {
-                    iterator.remove();
-                } else if (record.equals(one)) {
-                    authToken = record.authToken;
-                }
-            }
-        }
-        return authToken;
+        return authTokenCache.get(userId, account, authTokenType, packageName);
+    }
+
+    public String dumpAuthTokenStats() {
+        return authTokenCache.dumpStats();
     }
 
     private void onResult(IAccountManagerResponse response, Bundle result) {
@@ -843,7 +768,7 @@ public class VAccountManagerService implements IAccountManager {
         if (account == null) {
             return false;
         }
-        synchronized (accountsByUserId) {
+        synchronized (accountStore) {
             VAccount vAccount = new VAccount(userId, account);
             vAccount.password = password;
             // convert the [Bundle] to [Map<String, String>]
@@ -855,13 +780,7 @@ public class VAccountManagerService implements IAccountManager {
                     }
                 }
             }
-            List<VAccount> accounts = accountsByUserId.get(userId);
-            if (accounts == null) {
-                accounts = new ArrayList<>();
-                accountsByUserId.put(userId, accounts);
-            }
-            accounts.add(vAccount);
-            saveAllAccounts();
+            accountStore.add(vAccount);
             sendAccountsChangedBroadcast(vAccount.userId);
             return true;
         }
@@ -877,186 +796,117 @@ public class VAccountManagerService implements IAccountManager {
         long time = System.currentTimeMillis();
         if (Math.abs(time - lastAccountChangeTime) > CHECK_IN_TIME) {
             lastAccountChangeTime = time;
-            saveAllAccounts();
+            synchronized (accountStore) {
+                accountStore.setLastAccountChangeTime(userId, time);
+            }
             Intent intent = new Intent("android.server.checkin.CHECKIN_NOW");
             VActivityManagerService.get().sendBroadcastAsUser(intent, new VUserHandle(userId));
         }
     }
 
-    /**
-     * Serializing all accounts
-     */
-    private void saveAllAccounts() {
-        File accountFile = VEnvironment.getAccountConfigFile();
-        Parcel dest = Parcel.obtain();
-        try {
-            dest.writeInt(1);
-            List<VAccount> accounts = new ArrayList<>();
-            for (int i = 0; i < this.accountsByUserId.size(); i++) {
-                List<VAccount> list = this.accountsByUserId.valueAt(i);
-                if (list != null) {
-                    accounts.addAll(list);
-                }
-            }
-            dest.writeInt(accounts.size());
-            for (VAccount account : accounts) {
-                account.writeToParcel(dest, 0);
-            }
-            dest.writeLong(lastAccountChangeTime);
-            FileOutputStream fileOutputStream = new FileOutputStream(accountFile);
-            fileOutputStream.write(dest.marshall());
-            fileOutputStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        dest.recycle();
-    }
-
     /**
      * Read all accounts from file.
      */
     private void readAllAccounts() {
-        File accountFile = VEnvironment.getAccountConfigFile();
         refreshAuthenticatorCache(null);
-        if (accountFile.exists()) {
-            accountsByUserId.clear();
-            Parcel dest = Parcel.obtain();
-            try {
-                FileInputStream is = new FileInputStream(accountFile);
-                byte[] bytes = new byte[(int) accountFile.length()];
-                int readLength = is.read(bytes);
-                is.close();
-                if (readLength != bytes.length) {
-                    throw new IOException(String.format(Locale.ENGLISH, "Expect length %d, but got %d.", bytes.length, readLength));
-                }
-                dest.unmarshall(bytes, 0, bytes.length);
-                dest.setDataPosition(0);
-                dest.readInt(); // skip the magic
-                int size = dest.readInt(); // the VAccount's size we need to read
-                boolean invalid = false;
-                while (size-- > 0) {
-                    VAccount account = new VAccount(dest);
-                    VLog.d(TAG, "Reading account : " + account.type);
-                    AuthenticatorInfo info = cache.authenticators.get(account.type);
-                    if (info != null) {
-                        List<VAccount> accounts = accountsByUserId.get(account.userId);
-                        if (accounts == null) {
-                            accounts = new ArrayList<>();
-                            accountsByUserId.put(account.userId, accounts);
-                        }
-                        accounts.add(account);
-                    } else {
-                        invalid = true;
-                    }
-                }
-                lastAccountChangeTime = dest.readLong();
-                if (invalid) {
-                    saveAllAccounts();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                dest.recycle();
-            }
+        Set<String> types;
+        synchronized (cache) {
+            types = new HashSet<>(cache.authenticators.keySet());
+        }
+        synchronized (accountStore) {
+            accountStore.load(types);
+            lastAccountChangeTime = accountStore.getLastAccountChangeTime();
         }
     }
 
 
     private VAccount getAccount(int userId, String accountName, String accountType) {
-        List<VAccount> accounts = accountsByUserId.get(userId);
-        if (accounts != null) {
-            for (VAccount account : accounts) {
-                if (TextUtils.equals(account.name, accountName) && TextUtils.equals(account.type, accountType)) {
-                    return account;
-                }
-            }
-        }
-        return null;
+        return accountStore.get(userId, accountName, accountType);
     }
 
 
+    /**
+     * @param packageName only refresh the authenticators of this package, null for all packages.
+     */
     public void refreshAuthenticatorCache(String packageName) {
-        cache.authenticators.clear();
         Intent intent = new Intent(AccountManager.ACTION_AUTHENTICATOR_INTENT);
         if (packageName != null) {
             intent.setPackage(packageName);
         }
-        generateServicesMap(
-                VPackageManagerService.get().queryIntentServices(intent, null, PackageManager.GET_META_DATA, 0),
-                cache.authenticators, new RegisteredServicesParser());
-    }
-
-    private void generateServicesMap(List<ResolveInfo> services, Map<String, AuthenticatorInfo> map,
-                                     RegisteredServicesParser accountParser) {
+        List<ResolveInfo> services = VPackageManagerService.get().queryIntentServices(intent, null, PackageManager.GET_META_DATA, 0);
+        Map<String, List<ResolveInfo>> servicesByPackage = new HashMap<>();
         for (ResolveInfo info : services) {
-            XmlResourceParser parser = accountParser.getParser(mContext, info.serviceInfo,
-                    AccountManager.AUTHENTICATOR_META_DATA_NAME);
-            if (parser != null) {
-                try {
-                    AttributeSet attributeSet = Xml.asAttributeSet(parser);
-                    int type;
-                    while ((type = parser.next()) != XmlPullParser.END_DOCUMENT && type != XmlPullParser.START_TAG) {
-                        // Nothing to do
-                    }
-                    if (AccountManager.AUTHENTICATOR_ATTRIBUTES_NAME.equals(parser.getName())) {
-                        AuthenticatorDescription desc = parseAuthenticatorDescription(
-                                accountParser.getResources(mContext, info.serviceInfo.applicationInfo),
-                                info.serviceInfo.packageName, attributeSet);
-                        if (desc != null) {
-                            map.put(desc.type, new AuthenticatorInfo(desc, info.serviceInfo));
-                        }
+            List<ResolveInfo> list = servicesByPackage.get(info.serviceInfo.packageName);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                servicesByPackage.put(info.serviceInfo.packageName, list);
+            }
+            list.add(info);
+        }
+        synchronized (cache.packages) {
+            if (packageName == null) {
+                cache.packages.keySet().retainAll(servicesByPackage.keySet());
+            } else if (!servicesByPackage.containsKey(packageName)) {
+                cache.packages.remove(packageName);
+            }
+            for (Map.Entry<String, List<ResolveInfo>> entry : servicesByPackage.entrySet()) {
+                String pkg = entry.getKey();
+                PackageSetting ps = PackageCacheManager.getSetting(pkg);
+                long version = ps != null ? ps.lastUpdateTime : 0;
+                PackageAuthenticators parsed = cache.packages.get(pkg);
+                if (parsed == null || parsed.version != version) {
+                    parsed = new PackageAuthenticators(version, parseAuthenticators(entry.getValue()));
+                    cache.packages.put(pkg, parsed);
+                }
+            }
+            synchronized (cache) {
+                cache.authenticators.clear();
+                for (PackageAuthenticators parsed : cache.packages.values()) {
+                    for (AuthenticatorInfo info : parsed.authenticators) {
+                        cache.authenticators.put(info.desc.type, info);
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
                 }
             }
         }
     }
 
-    final static class AuthTokenRecord {
-        public int userId;
-        public Account account;
-        public long expiryEpochMillis;
-        public String authToken;
-        private String authTokenType;
-        private String packageName;
-
-        AuthTokenRecord(int userId, Account account, String authTokenType, String packageName, String authToken,
-                        long expiryEpochMillis) {
-            this.userId = userId;
-            this.account = account;
-            this.authTokenType = authTokenType;
-            this.packageName = packageName;
-            this.authToken = authToken;
-            this.expiryEpochMillis = expiryEpochMillis;
-        }
-
-        AuthTokenRecord(int userId, Account account, String authTokenType, String packageName) {
-            this.userId = userId;
-            this.account = account;
-            this.authTokenType = authTokenType;
-            this.packageName = packageName;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o)
-                return true;
-            if (o == null || getClass() != o.getClass())
-                return false;
-            AuthTokenRecord that = (AuthTokenRecord) o;
-            return userId == that.userId
-                    && account.equals(that.account)
-                    && authTokenType.equals(that.authTokenType)
-                    && packageName.equals(that.packageName);
-        }
-
-        @Override
-        public int hashCode() {
-            return ((this.userId * 31 + this.account.hashCode()) * 31
-                    + this.authTokenType.hashCode()) * 31
-                    + this.packageName.hashCode();
+    /**
+     * Parse the authenticators of one package, its Resources are only created once.
+     */
+    private List<AuthenticatorInfo> parseAuthenticators(List<ResolveInfo> services) {
+        List<AuthenticatorInfo> authenticators = new ArrayList<>(services.size());
+        RegisteredServicesParser accountParser = new RegisteredServicesParser();
+        Resources resources = null;
+        for (ResolveInfo info : services) {
+            try {
+                if (resources == null) {
+                    resources = accountParser.getResources(mContext, info.serviceInfo.applicationInfo);
+                    if (resources == null) {
+                        break;
+                    }
+                }
+                XmlResourceParser parser = accountParser.getParser(resources, info.serviceInfo,
+                        AccountManager.AUTHENTICATOR_META_DATA_NAME);
+                if (parser == null) {
+                    continue;
+                }
+                AttributeSet attributeSet = Xml.asAttributeSet(parser);
+                int type;
+                while ((type = parser.next()) != XmlPullParser.END_DOCUMENT && type != XmlPullParser.START_TAG) {
+                    // Nothing to do
+                }
+                if (AccountManager.AUTHENTICATOR_ATTRIBUTES_NAME.equals(parser.getName())) {
+                    AuthenticatorDescription desc = parseAuthenticatorDescription(resources,
+                            info.serviceInfo.packageName, attributeSet);
+                    if (desc != null) {
+                        authenticators.add(new AuthenticatorInfo(desc, info.serviceInfo));
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
+        return authenticators;
     }
 
     private final class AuthenticatorInfo {
@@ -1071,6 +921,23 @@ public class VAccountManagerService implements IAccountManager {
 
     private final class AuthenticatorCache {
         final Map<String, AuthenticatorInfo> authenticators = new HashMap<>();
+        /**
+         * The parsed authenticators of each package, they are reused until the package is updated.
+         */
+        final Map<String, PackageAuthenticators> packages = new HashMap<>();
+    }
+
+    private static final class PackageAuthenticators {
+        /**
+         * The lastUpdateTime of the package they were parsed from.
+         */
+        final long version;
+        final List<AuthenticatorInfo> authenticators;
+
+        PackageAuthenticators(long version, List<AuthenticatorInfo> authenticators) {
+            this.version = version;
+            this.authenticators = authenticators;
+        }
     }
 
     private abstract class Session extends IAccountAuthenticatorResponse.Stub
@@ -1208,11 +1075,10 @@ public class VAccountManagerService implements IAccountManager {
                 boolean needUpdate = mUpdateLastAuthenticatedTime
                         && (isSuccessfulConfirmCreds || isSuccessfulUpdateCredsOrAddAccount);
                 if (needUpdate || mAuthDetailsRequired) {
-                    synchronized (accountsByUserId) {
+                    synchronized (accountStore) {
                         VAccount account = getAccount(mUserId, mAccountName, mAuthenticatorInfo.desc.type);
                         if (needUpdate && account != null) {
-                            account.lastAuthenticatedTime = System.currentTimeMillis();
-                            saveAllAccounts();
+                            accountStore.setLastAuthenticatedTime(account, System.currentTimeMillis());
                         }
                         if (mAuthDetailsRequired) {
                             long lastAuthenticatedTime = -1;
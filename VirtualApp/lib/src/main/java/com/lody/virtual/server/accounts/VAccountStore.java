@@ -0,0 +1,445 @@
+package com.lody.virtual.server.accounts;
+
+import android.os.Parcel;
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import com.lody.virtual.helper.utils.AtomicFile;
+import com.lody.virtual.helper.utils.FileUtils;
+import com.lody.virtual.helper.utils.VLog;
+import com.lody.virtual.os.VEnvironment;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The accounts of every user, indexed by (userId, type, name).
+ * <p>
+ * Each user has its own snapshot file and an append-only journal next to it.
+ * A change only appends a record to the journal of its user, the snapshot
+ * is written again once the journal grows too long. Every record sets a state
+ * instead of changing it, so replaying a journal over a newer snapshot is harmless.
+ * <p>
+ * Not thread safe, the callers hold the lock of the store.
+ *
+ * @author Lody
+ */
+class VAccountStore {
+
+    private static final String TAG = VAccountStore.class.getSimpleName();
+
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_SET_PASSWORD = 3;
+    private static final int OP_SET_AUTH_TOKEN = 4;
+    private static final int OP_SET_USER_DATA = 5;
+    private static final int OP_SET_AUTHENTICATED_TIME = 6;
+    private static final int OP_SET_CHANGE_TIME = 7;
+
+    private final SparseArray<UserAccounts> mUsers = new SparseArray<>();
+    private long mLastAccountChangeTime;
+
+    VAccount get(int userId, String name, String type) {
+        UserAccounts user = mUsers.get(userId);
+        return user != null ? user.accounts.get(new Key(name, type)) : null;
+    }
+
+    Collection<VAccount> getAccounts(int userId) {
+        UserAccounts user = mUsers.get(userId);
+        return user != null ? user.accounts.values() : Collections.<VAccount>emptyList();
+    }
+
+    long getLastAccountChangeTime() {
+        return mLastAccountChangeTime;
+    }
+
+    void add(VAccount account) {
+        UserAccounts user = getOrCreateUser(account.userId);
+        user.accounts.put(new Key(account.name, account.type), account);
+        Parcel record = obtainRecord(OP_PUT);
+        account.writeToParcel(record, 0);
+        append(user, record);
+    }
+
+    /**
+     * Write the whole account again, for the changes without a record of their own.
+     */
+    void update(VAccount account) {
+        Parcel record = obtainRecord(OP_PUT);
+        account.writeToParcel(record, 0);
+        append(getOrCreateUser(account.userId), record);
+    }
+
+    boolean remove(int userId, String name, String type) {
+        UserAccounts user = mUsers.get(userId);
+        if (user == null || user.accounts.remove(new Key(name, type)) == null) {
+            return false;
+        }
+        Parcel record = obtainRecord(OP_REMOVE);
+        record.writeString(name);
+        record.writeString(type);
+        append(user, record);
+        return true;
+    }
+
+    void rename(VAccount account, String newName) {
+        remove(account.userId, account.name, account.type);
+        account.previousName = account.name;
+        account.name = newName;
+        add(account);
+    }
+
+    void setPassword(VAccount account, String password) {
+        account.password = password;
+        account.authTokens.clear();
+        Parcel record = obtainRecord(OP_SET_PASSWORD, account);
+        record.writeString(password);
+        append(getOrCreateUser(account.userId), record);
+    }
+
+    void setAuthToken(VAccount account, String authTokenType, String authToken) {
+        account.authTokens.put(authTokenType, authToken);
+        Parcel record = obtainRecord(OP_SET_AUTH_TOKEN, account);
+        record.writeString(authTokenType);
+        record.writeString(authToken);
+        append(getOrCreateUser(account.userId), record);
+    }
+
+    void setUserData(VAccount account, String key, String value) {
+        account.userDatas.put(key, value);
+        Parcel record = obtainRecord(OP_SET_USER_DATA, account);
+        record.writeString(key);
+        record.writeString(value);
+        append(getOrCreateUser(account.userId), record);
+    }
+
+    void setLastAuthenticatedTime(VAccount account, long time) {
+        account.lastAuthenticatedTime = time;
+        Parcel record = obtainRecord(OP_SET_AUTHENTICATED_TIME, account);
+        record.writeLong(time);
+        append(getOrCreateUser(account.userId), record);
+    }
+
+    void setLastAccountChangeTime(int userId, long time) {
+        mLastAccountChangeTime = time;
+        Parcel record = obtainRecord(OP_SET_CHANGE_TIME);
+        record.writeLong(time);
+        append(getOrCreateUser(userId), record);
+    }
+
+    /**
+     * Read the accounts of all users, the accounts whose type isn't
+     * in {@code validTypes} are dropped.
+     */
+    void load(Set<String> validTypes) {
+        mUsers.clear();
+        File legacyFile = VEnvironment.getAccountConfigFile();
+        if (legacyFile.exists()) {
+            migrateLegacyFile(legacyFile);
+        }
+        File[] files = VEnvironment.getAccountDirectory().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            int userId = parseUserId(file.getName());
+            if (userId >= 0 && mUsers.get(userId) == null) {
+                readUser(userId);
+            }
+        }
+        for (int i = 0; i < mUsers.size(); i++) {
+            UserAccounts user = mUsers.valueAt(i);
+            boolean invalid = false;
+            Iterator<VAccount> iterator = user.accounts.values().iterator();
+            while (iterator.hasNext()) {
+                VAccount account = iterator.next();
+                if (!validTypes.contains(account.type)) {
+                    iterator.remove();
+                    invalid = true;
+                }
+            }
+            if (invalid || user.journalRecords > 0) {
+                compact(user);
+            }
+        }
+    }
+
+    /**
+     * @return the user of a snapshot or a journal file, -1 for the other files.
+     */
+    private static int parseUserId(String fileName) {
+        int dot = fileName.indexOf('.');
+        if (dot <= 0 || !(fileName.endsWith(".ini") || fileName.endsWith(".journal"))) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void migrateLegacyFile(File legacyFile) {
+        Parcel p = Parcel.obtain();
+        try {
+            byte[] bytes = new AtomicFile(legacyFile).readFully();
+            p.unmarshall(bytes, 0, bytes.length);
+            p.setDataPosition(0);
+            p.readInt(); // skip the magic
+            int size = p.readInt();
+            while (size-- > 0) {
+                VAccount account = new VAccount(p);
+                getOrCreateUser(account.userId).accounts.put(new Key(account.name, account.type), account);
+            }
+            mLastAccountChangeTime = p.readLong();
+            for (int i = 0; i < mUsers.size(); i++) {
+                compact(mUsers.valueAt(i));
+            }
+            legacyFile.delete();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private void readUser(int userId) {
+        UserAccounts user = getOrCreateUser(userId);
+        File snapshotFile = VEnvironment.getAccountListFile(userId);
+        AtomicFile snapshot = new AtomicFile(snapshotFile);
+        if (snapshotFile.exists() || new File(snapshotFile.getPath() + ".bak").exists()) {
+            Parcel p = Parcel.obtain();
+            try {
+                byte[] bytes = snapshot.readFully();
+                p.unmarshall(bytes, 0, bytes.length);
+                p.setDataPosition(0);
+                if (p.readInt() == SNAPSHOT_VERSION) {
+                    mLastAccountChangeTime = Math.max(mLastAccountChangeTime, p.readLong());
+                    int size = p.readInt();
+                    while (size-- > 0) {
+                        VAccount account = new VAccount(p);
+                        user.accounts.put(new Key(account.name, account.type), account);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                p.recycle();
+            }
+        }
+        File journalFile = VEnvironment.getAccountJournalFile(userId);
+        if (!journalFile.exists()) {
+            return;
+        }
+        long length = journalFile.length();
+        // The end of the last record which was replayed.
+        long offset = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(journalFile));
+            while (length - offset >= 4) {
+                int size = in.readInt();
+                if (size < 0 || size > length - offset - 4) {
+                    // A record which was cut off while it was written.
+                    break;
+                }
+                byte[] data = new byte[size];
+                in.readFully(data);
+                Parcel record = Parcel.obtain();
+                try {
+                    record.unmarshall(data, 0, data.length);
+                    record.setDataPosition(0);
+                    replay(user, record);
+                } finally {
+                    record.recycle();
+                }
+                offset += 4 + size;
+                user.journalRecords++;
+            }
+        } catch (Exception e) {
+            VLog.w(TAG, "Unable to replay the account journal of user %d: %s", userId, e);
+        } finally {
+            FileUtils.closeQuietly(in);
+        }
+        if (offset < length) {
+            // Drop the broken tail, or the records appended after it would be lost,
+            // and make sure the next compaction drops the journal.
+            truncateJournal(journalFile, offset);
+            user.journalRecords++;
+        }
+    }
+
+    private static void truncateJournal(File journalFile, long offset) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(journalFile, "rw");
+            file.setLength(offset);
+            file.getFD().sync();
+        } catch (IOException e) {
+            VLog.w(TAG, "Unable to truncate the account journal %s: %s", journalFile, e);
+        } finally {
+            FileUtils.closeQuietly(file);
+        }
+    }
+
+    private void replay(UserAccounts user, Parcel record) {
+        int op = record.readInt();
+        if (op == OP_PUT) {
+            VAccount account = new VAccount(record);
+            user.accounts.put(new Key(account.name, account.type), account);
+            return;
+        }
+        if (op == OP_SET_CHANGE_TIME) {
+            mLastAccountChangeTime = Math.max(mLastAccountChangeTime, record.readLong());
+            return;
+        }
+        Key key = new Key(record.readString(), record.readString());
+        if (op == OP_REMOVE) {
+            user.accounts.remove(key);
+            return;
+        }
+        VAccount account = user.accounts.get(key);
+        if (account == null) {
+            return;
+        }
+        switch (op) {
+            case OP_SET_PASSWORD:
+                account.password = record.readString();
+                account.authTokens.clear();
+                break;
+            case OP_SET_AUTH_TOKEN:
+                account.authTokens.put(record.readString(), record.readString());
+                break;
+            case OP_SET_USER_DATA:
+                account.userDatas.put(record.readString(), record.readString());
+                break;
+            case OP_SET_AUTHENTICATED_TIME:
+                account.lastAuthenticatedTime = record.readLong();
+                break;
+        }
+    }
+
+    private UserAccounts getOrCreateUser(int userId) {
+        UserAccounts user = mUsers.get(userId);
+        if (user == null) {
+            user = new UserAccounts(userId);
+            mUsers.put(userId, user);
+        }
+        return user;
+    }
+
+    private static Parcel obtainRecord(int op) {
+        Parcel record = Parcel.obtain();
+        record.writeInt(op);
+        return record;
+    }
+
+    private static Parcel obtainRecord(int op, VAccount account) {
+        Parcel record = obtainRecord(op);
+        record.writeString(account.name);
+        record.writeString(account.type);
+        return record;
+    }
+
+    private void append(UserAccounts user, Parcel record) {
+        FileOutputStream fos = null;
+        try {
+            byte[] data = record.marshall();
+            fos = new FileOutputStream(VEnvironment.getAccountJournalFile(user.userId), true);
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+            // The record is only committed once it is on the disk.
+            fos.getFD().sync();
+            user.journalRecords++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            FileUtils.closeQuietly(fos);
+            record.recycle();
+        }
+        if (user.journalRecords > Math.max(MIN_COMPACT_RECORDS, user.accounts.size() * 4)) {
+            compact(user);
+        }
+    }
+
+    /**
+     * Write the snapshot of a user again and start an empty journal.
+     */
+    private void compact(UserAccounts user) {
+        AtomicFile snapshot = new AtomicFile(VEnvironment.getAccountListFile(user.userId));
+        Parcel p = Parcel.obtain();
+        FileOutputStream fos = null;
+        try {
+            p.writeInt(SNAPSHOT_VERSION);
+            p.writeLong(mLastAccountChangeTime);
+            List<VAccount> accounts = new ArrayList<>(user.accounts.values());
+            p.writeInt(accounts.size());
+            for (VAccount account : accounts) {
+                account.writeToParcel(p, 0);
+            }
+            fos = snapshot.startWrite();
+            fos.write(p.marshall());
+            snapshot.finishWrite(fos);
+            VEnvironment.getAccountJournalFile(user.userId).delete();
+            user.journalRecords = 0;
+        } catch (IOException e) {
+            snapshot.failWrite(fos);
+            e.printStackTrace();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private static final class UserAccounts {
+        final int userId;
+        final LinkedHashMap<Key, VAccount> accounts = new LinkedHashMap<>();
+        /**
+         * The records appended to the journal since the last snapshot.
+         */
+        int journalRecords;
+
+        UserAccounts(int userId) {
+            this.userId = userId;
+        }
+    }
+
+    private static final class Key {
+        final String name;
+        final String type;
+
+        Key(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return TextUtils.equals(name, other.name) && TextUtils.equals(type, other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (name != null ? name.hashCode() : 0) + (type != null ? type.hashCode() : 0);
+        }
+    }
+}
@@ -11,6 +11,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.SparseArray;
 
 import com.lody.virtual.client.core.VirtualCore;
@@ -20,11 +21,14 @@ import com.lody.virtual.helper.utils.ArrayUtils;
 import com.lody.virtual.helper.utils.ClassUtils;
 import com.lody.virtual.helper.utils.ComponentUtils;
 import com.lody.virtual.remote.AppTaskInfo;
+import com.lody.virtual.remote.LaunchTrace;
 import com.lody.virtual.remote.StubActivityRecord;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.ListIterator;
+import java.util.Map;
 
 import mirror.android.app.ActivityManagerNative;
 import mirror.android.app.ActivityThread;
@@ -42,6 +46,10 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
 
 /* package */ class ActivityStack {
 
+    /**
+     * The launch records kept for the compact stub intents, also used to relaunch them.
+     */
+    private static final int MAX_PENDING_LAUNCHES = 128;
     private final ActivityManager mAM;
     private final VActivityManagerService mService;
 
@@ -49,6 +57,15 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
      * [Key] = TaskId [Value] = TaskRecord
      */
     private final SparseArray<TaskRecord> mHistory = new SparseArray<>();
+    /**
+     * launch id -> record of the compact stub intents, guarded by itself.
+     */
+    private final LinkedHashMap<Long, StubActivityRecord> mPendingLaunches = new LinkedHashMap<Long, StubActivityRecord>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, StubActivityRecord> eldest) {
+            return size() > MAX_PENDING_LAUNCHES;
+        }
+    };
 
 
     ActivityStack(VActivityManagerService mService) {
@@ -552,10 +569,19 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
 
     private Intent startActivityProcess(int userId, ActivityRecord sourceRecord, Intent intent, ActivityInfo info) {
         intent = new Intent(intent);
+        LaunchTracer tracer = mService.getLaunchTracer();
+        long launchId = tracer.beginLaunch(ComponentUtils.toComponentName(info), userId);
+        long processStart = SystemClock.uptimeMillis();
+        tracer.trace(launchId, LaunchTrace.PHASE_PROCESS_START, processStart);
         ProcessRecord targetApp = mService.startProcessIfNeedLocked(info.processName, userId, info.packageName);
         if (targetApp == null) {
             return null;
         }
+        if (targetApp.initTime >= processStart) {
+            // Started for this launch.
+            tracer.trace(launchId, LaunchTrace.PHASE_STUB_INIT, targetApp.initTime);
+        }
+        tracer.trace(launchId, LaunchTrace.PHASE_PROCESS_READY);
         Intent targetIntent = new Intent();
         targetIntent.setClassName(VirtualCore.get().getHostPkg(), fetchStubActivity(targetApp.vpid, info));
         ComponentName component = intent.getComponent();
@@ -565,10 +591,32 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
         targetIntent.setType(component.flattenToString());
         StubActivityRecord saveInstance = new StubActivityRecord(intent, info,
                 sourceRecord != null ? sourceRecord.component : null, userId);
-        saveInstance.saveToIntent(targetIntent);
+        saveInstance.launchId = launchId;
+        if (VASettings.ENABLE_COMPACT_STUB_INTENT) {
+            synchronized (mPendingLaunches) {
+                mPendingLaunches.put(launchId, saveInstance);
+            }
+            if (targetApp.client != null) {
+                try {
+                    // Deliver the record before the stub, the process never waits for it.
+                    targetApp.client.scheduleLaunchRecord(saveInstance);
+                } catch (RemoteException e) {
+                    // The process will ask for it once restarted.
+                }
+            }
+            saveInstance.saveTokenToIntent(targetIntent);
+        } else {
+            saveInstance.saveToIntent(targetIntent);
+        }
         return targetIntent;
     }
 
+    StubActivityRecord getPendingLaunch(long launchId) {
+        synchronized (mPendingLaunches) {
+            return mPendingLaunches.get(launchId);
+        }
+    }
+
     void onActivityCreated(ProcessRecord targetApp, ComponentName component, ComponentName caller, IBinder token,
                            Intent taskRoot, String affinity, int taskId, int launchMode, int flags) {
         synchronized (mHistory) {
@@ -18,34 +18,28 @@
 package com.lody.virtual.server.am;
 
 import java.util.HashMap;
-import java.util.WeakHashMap;
 
-import android.content.Context;
-import android.content.pm.ActivityInfo;
-import android.content.pm.PackageManager;
-import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.util.SparseArray;
 
+import com.lody.virtual.helper.ResourcesCache;
+import com.lody.virtual.server.pm.PackageCacheManager;
+import com.lody.virtual.server.pm.PackageSetting;
+
 /**
- * TODO: This should be better integrated into the system so it doesn't need
- * special calls from the activity manager to clear it.
+ * The attributes of the installed packages, read from the Resources shared by {@link ResourcesCache}.
+ * The attributes of a package are dropped when the cache gives out new Resources for it,
+ * which happens when the configuration changes or the package is installed again.
  */
 public final class AttributeCache {
 	private static AttributeCache sInstance = null;
 
-	private final Context mContext;
-	private final WeakHashMap<String, Package> mPackages = new WeakHashMap<String, Package>();
-	private final Configuration mConfiguration = new Configuration();
-
-	public AttributeCache(Context context) {
-		mContext = context;
-	}
+	private final HashMap<String, Package> mPackages = new HashMap<String, Package>();
 
-	public static void init(Context context) {
+	public static void init() {
 		if (sInstance == null) {
-			sInstance = new AttributeCache(context);
+			sInstance = new AttributeCache();
 		}
 	}
 
@@ -59,25 +53,17 @@ public final class AttributeCache {
 		}
 	}
 
-	public void updateConfiguration(Configuration config) {
-		synchronized (this) {
-			int changes = mConfiguration.updateFrom(config);
-			if ((changes & ~(ActivityInfo.CONFIG_FONT_SCALE | ActivityInfo.CONFIG_KEYBOARD_HIDDEN
-					| ActivityInfo.CONFIG_ORIENTATION)) != 0) {
-				// The configurations being masked out are ones that commonly
-				// change so we don't want flushing the cache... all others
-				// will flush the cache.
-				mPackages.clear();
-			}
-		}
-	}
-
 	public Entry get(String packageName, int resId, int[] styleable) {
+		PackageSetting ps = PackageCacheManager.getSetting(packageName);
+		if (ps == null) {
+			return null;
+		}
+		Resources resources = ResourcesCache.get().getResources(ps.apkPath);
 		synchronized (this) {
 			Package pkg = mPackages.get(packageName);
 			HashMap<int[], Entry> map = null;
 			Entry ent = null;
-			if (pkg != null) {
+			if (pkg != null && pkg.resources == resources) {
 				map = pkg.mMap.get(resId);
 				if (map != null) {
 					ent = map.get(styleable);
@@ -86,17 +72,7 @@ public final class AttributeCache {
 					}
 				}
 			} else {
-				Context context;
-				try {
-					context = mContext.createPackageContext(packageName,
-							Context.CONTEXT_INCLUDE_CODE | Context.CONTEXT_IGNORE_SECURITY);
-					if (context == null) {
-						return null;
-					}
-				} catch (PackageManager.NameNotFoundException e) {
-					return null;
-				}
-				pkg = new Package(context);
+				pkg = new Package(resources);
 				mPackages.put(packageName, pkg);
 			}
 
@@ -106,7 +82,7 @@ public final class AttributeCache {
 			}
 
 			try {
-				ent = new Entry(pkg.context, pkg.context.obtainStyledAttributes(resId, styleable));
+				ent = new Entry(pkg.resources, pkg.theme.obtainStyledAttributes(resId, styleable));
 				map.put(styleable, ent);
 			} catch (Resources.NotFoundException e) {
 				return null;
@@ -117,20 +93,22 @@ public final class AttributeCache {
 	}
 
 	public final static class Package {
-		public final Context context;
+		public final Resources resources;
+		final Resources.Theme theme;
 		private final SparseArray<HashMap<int[], Entry>> mMap = new SparseArray<HashMap<int[], Entry>>();
 
-		public Package(Context c) {
-			context = c;
+		public Package(Resources res) {
+			resources = res;
+			theme = res.newTheme();
 		}
 	}
 
 	public final static class Entry {
-		public final Context context;
+		public final Resources resources;
 		public final TypedArray array;
 
-		public Entry(Context c, TypedArray ta) {
-			context = c;
+		public Entry(Resources res, TypedArray ta) {
+			resources = res;
 			array = ta;
 		}
 	}
@@ -0,0 +1,479 @@
+package com.lody.virtual.server.am;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.lody.virtual.client.stub.VASettings;
+import com.lody.virtual.helper.utils.VLog;
+import com.lody.virtual.os.VUserHandle;
+import com.lody.virtual.remote.PendingResultData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches the static broadcasts to the receivers inside VA.
+ * <p>
+ * Receivers of a running process are scheduled at once (parallel lane),
+ * receivers of an ordered broadcast are scheduled one after another (ordered lane).
+ * Receivers of a process which is not running are dropped, unless
+ * {@link VASettings#ENABLE_BROADCAST_COLD_START} is set. Then they go to the cold start
+ * lane, which starts the processes one at a time off the BroadcastThread, and delivers
+ * everything waiting for a process with a single start.
+ */
+class BroadcastQueue {
+
+    private static final String TAG = BroadcastQueue.class.getSimpleName();
+
+    /**
+     * A non-urgent broadcast for a process which is not running
+     * is delayed, and the same broadcasts in this window are coalesced.
+     */
+    private static final long DEFER_DELAY = 10 * 1000;
+    /**
+     * The system gives the whole ordered lane the time of one receiver,
+     * 10s for a foreground broadcast, so the lane must be done before.
+     * The receivers left then are delivered without order.
+     */
+    private static final long ORDERED_DEADLINE = 6 * 1000;
+
+    private final VActivityManagerService mAMS;
+    private final Handler mHandler;
+    /**
+     * A single worker, the starts are serialized by the lock of VAMS anyway.
+     */
+    private final Executor mStarter = Executors.newSingleThreadExecutor();
+    /**
+     * process key -> receivers waiting for the process, guarded by itself.
+     */
+    private final LinkedHashMap<String, ColdStart> mPendingStarts = new LinkedHashMap<>();
+    /**
+     * Guarded by {@link #mPendingStarts}.
+     */
+    private final Map<String, Delivery> mDeferred = new HashMap<>();
+    /**
+     * action -> stats, guarded by itself.
+     */
+    private final Map<String, ActionStats> mStats = new HashMap<>();
+
+    BroadcastQueue(VActivityManagerService ams, Handler handler) {
+        this.mAMS = ams;
+        this.mHandler = handler;
+    }
+
+    Batch newBatch(String action, PendingResultData result) {
+        return new Batch(action, result);
+    }
+
+    void enqueue(final Batch batch) {
+        synchronized (mStats) {
+            getStatsLocked(batch.action).broadcasts++;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (batch.ordered) {
+                    mHandler.postDelayed(batch.deadline, ORDERED_DEADLINE);
+                    dispatchNextOrdered(batch);
+                } else {
+                    for (Delivery delivery : batch.deliveries) {
+                        dispatch(batch, delivery);
+                    }
+                    batch.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when a receiver scheduled by this queue has finished or timed out.
+     *
+     * @param res the result left by the receiver.
+     */
+    void onDeliveryFinished(final DeliveryToken token, PendingResultData res) {
+        final Batch batch = token.batch;
+        if (batch.ordered) {
+            if (!batch.expired) {
+                batch.resultCode = res.mResultCode;
+                batch.resultData = res.mResultData;
+                batch.resultExtras = res.mResultExtras;
+                batch.aborted = res.mAbortBroadcast;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchNextOrdered(batch);
+                }
+            });
+        }
+        batch.release();
+    }
+
+    /**
+     * Drop the deferred and waiting receivers of an uninstalled package.
+     */
+    void removePackage(String packageName) {
+        List<PendingResultData> dropped = new ArrayList<>();
+        synchronized (mPendingStarts) {
+            Iterator<Delivery> deferred = mDeferred.values().iterator();
+            while (deferred.hasNext()) {
+                if (deferred.next().info.packageName.equals(packageName)) {
+                    deferred.remove();
+                }
+            }
+            Iterator<ColdStart> starts = mPendingStarts.values().iterator();
+            while (starts.hasNext()) {
+                ColdStart start = starts.next();
+                if (start.info.packageName.equals(packageName)) {
+                    dropped.addAll(start.results);
+                    starts.remove();
+                }
+            }
+        }
+        for (PendingResultData res : dropped) {
+            finishResult(res);
+        }
+    }
+
+    private void dispatchNextOrdered(Batch batch) {
+        if (batch.laneEnded) {
+            return;
+        }
+        if (!batch.aborted && !batch.expired && batch.next < batch.deliveries.size()) {
+            dispatch(batch, batch.deliveries.get(batch.next++));
+        } else {
+            batch.laneEnded = true;
+            batch.release();
+        }
+    }
+
+    /**
+     * The ordered lane took too long: finish the system broadcast with the result so far,
+     * and deliver the receivers which are left at once.
+     */
+    private void expire(Batch batch) {
+        if (batch.laneEnded) {
+            return;
+        }
+        VLog.w(TAG, "Ordered broadcast %s is over its deadline, %d receivers left.",
+                batch.action, batch.deliveries.size() - batch.next);
+        batch.expired = true;
+        batch.finishResult();
+        while (batch.next < batch.deliveries.size()) {
+            dispatch(batch, batch.deliveries.get(batch.next++));
+        }
+    }
+
+    private void dispatch(Batch batch, Delivery delivery) {
+        PendingResultData res = new PendingResultData(new DeliveryToken(batch), delivery.userId);
+        if (batch.ordered && !batch.expired) {
+            res.mOrderedHint = true;
+            res.mResultCode = batch.resultCode;
+            res.mResultData = batch.resultData;
+            res.mResultExtras = batch.resultExtras;
+        }
+        ProcessRecord r = mAMS.findReceiverProcess(delivery.vuid, delivery.info);
+        if (r != null) {
+            onScheduled(batch.action, batch.receivedTime);
+            mAMS.scheduleReceiver(r, delivery.vuid, delivery.info, delivery.intent, res);
+        } else if (VASettings.ENABLE_BROADCAST_COLD_START) {
+            if (isUrgent(batch, delivery)) {
+                addColdStart(batch.action, batch.receivedTime, delivery, res);
+            } else {
+                // Don't hold the broadcast for a process start.
+                defer(delivery);
+                finishResult(res);
+            }
+        } else {
+            finishResult(res);
+        }
+    }
+
+    private boolean isUrgent(Batch batch, Delivery delivery) {
+        // The sender is waiting for the result of an ordered broadcast.
+        return batch.ordered || (delivery.intent.getFlags() & Intent.FLAG_RECEIVER_FOREGROUND) != 0;
+    }
+
+    private void defer(Delivery delivery) {
+        final String key = delivery.vuid + "/" + delivery.info.packageName + "/" + delivery.info.name
+                + "/" + delivery.intent.getAction();
+        synchronized (mPendingStarts) {
+            // Keep the latest one, e.g. CONNECTIVITY_CHANGE.
+            if (mDeferred.put(key, delivery) != null) {
+                return;
+            }
+        }
+        synchronized (mStats) {
+            getStatsLocked(delivery.intent.getAction()).deferred++;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Delivery d;
+                synchronized (mPendingStarts) {
+                    d = mDeferred.remove(key);
+                }
+                if (d != null) {
+                    PendingResultData res = new PendingResultData(new Binder(), d.userId);
+                    addColdStart(d.intent.getAction(), SystemClock.uptimeMillis(), d, res);
+                }
+            }
+        }, DEFER_DELAY);
+    }
+
+    private void addColdStart(String action, long receivedTime, Delivery delivery, PendingResultData res) {
+        final String key = delivery.info.processName + "/" + delivery.vuid;
+        synchronized (mPendingStarts) {
+            ColdStart start = mPendingStarts.get(key);
+            if (start == null) {
+                start = new ColdStart(key, delivery.vuid, delivery.info);
+                mPendingStarts.put(key, start);
+                mStarter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ColdStart start;
+                        synchronized (mPendingStarts) {
+                            // Everything added until now is delivered by this start.
+                            start = mPendingStarts.remove(key);
+                        }
+                        if (start != null) {
+                            performColdStart(start);
+                        }
+                    }
+                });
+            }
+            start.actions.add(action);
+            start.receivedTimes.add(receivedTime);
+            start.deliveries.add(delivery);
+            start.results.add(res);
+        }
+    }
+
+    private void performColdStart(ColdStart start) {
+        ProcessRecord r = mAMS.startReceiverProcess(start.vuid, start.info);
+        if (r == null) {
+            VLog.w(TAG, "Unable to start process " + start.key + " for broadcast.");
+        }
+        synchronized (mStats) {
+            getStatsLocked(start.actions.get(0)).coldStarts++;
+        }
+        for (int i = 0; i < start.deliveries.size(); i++) {
+            Delivery delivery = start.deliveries.get(i);
+            PendingResultData res = start.results.get(i);
+            if (r != null) {
+                onScheduled(start.actions.get(i), start.receivedTimes.get(i));
+                mAMS.scheduleReceiver(r, delivery.vuid, delivery.info, delivery.intent, res);
+            } else {
+                finishResult(res);
+            }
+        }
+    }
+
+    private void finishResult(PendingResultData res) {
+        res.finish();
+        if (res.mToken instanceof DeliveryToken) {
+            onDeliveryFinished((DeliveryToken) res.mToken, res);
+        }
+    }
+
+    private void onScheduled(String action, long receivedTime) {
+        long latency = SystemClock.uptimeMillis() - receivedTime;
+        synchronized (mStats) {
+            ActionStats stats = getStatsLocked(action);
+            stats.deliveries++;
+            stats.totalDispatchLatency += latency;
+            stats.maxDispatchLatency = Math.max(stats.maxDispatchLatency, latency);
+        }
+    }
+
+    private void onBatchComplete(Batch batch) {
+        long latency = SystemClock.uptimeMillis() - batch.receivedTime;
+        synchronized (mStats) {
+            ActionStats stats = getStatsLocked(batch.action);
+            stats.completed++;
+            stats.totalCompleteLatency += latency;
+            stats.maxCompleteLatency = Math.max(stats.maxCompleteLatency, latency);
+        }
+    }
+
+    private ActionStats getStatsLocked(String action) {
+        ActionStats stats = mStats.get(action);
+        if (stats == null) {
+            stats = new ActionStats();
+            mStats.put(action, stats);
+        }
+        return stats;
+    }
+
+    String dumpStats() {
+        StringBuilder sb = new StringBuilder("Broadcast latency (ms):\n");
+        synchronized (mStats) {
+            for (Map.Entry<String, ActionStats> entry : mStats.entrySet()) {
+                ActionStats stats = entry.getValue();
+                sb.append("  ").append(entry.getKey())
+                        .append(" broadcasts=").append(stats.broadcasts)
+                        .append(" deliveries=").append(stats.deliveries)
+                        .append(" dispatch(avg/max)=")
+                        .append(stats.deliveries == 0 ? 0 : stats.totalDispatchLatency / stats.deliveries)
+                        .append('/').append(stats.maxDispatchLatency)
+                        .append(" complete(avg/max)=")
+                        .append(stats.completed == 0 ? 0 : stats.totalCompleteLatency / stats.completed)
+                        .append('/').append(stats.maxCompleteLatency)
+                        .append(" coldStarts=").append(stats.coldStarts)
+                        .append(" deferred=").append(stats.deferred)
+                        .append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * All of the static receivers matched by one broadcast.
+     */
+    final class Batch {
+        final String action;
+        /**
+         * The result of the system broadcast, null if the broadcast never went through the system.
+         */
+        final PendingResultData result;
+        final boolean ordered;
+        final long receivedTime = SystemClock.uptimeMillis();
+        final List<Delivery> deliveries = new ArrayList<>();
+        private final AtomicInteger pending = new AtomicInteger(1);
+        /**
+         * The next receiver of the ordered lane, only accessed on the BroadcastThread.
+         */
+        private int next;
+        /**
+         * Only accessed on the BroadcastThread.
+         */
+        private boolean laneEnded;
+        /**
+         * Set on the BroadcastThread once the ordered lane is over {@link #ORDERED_DEADLINE}.
+         */
+        private volatile boolean expired;
+        private boolean resultFinished;
+        private final Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                expire(Batch.this);
+            }
+        };
+        /**
+         * The result passed from one receiver of the ordered lane to the next,
+         * only one receiver runs at a time.
+         */
+        private int resultCode;
+        private String resultData;
+        private Bundle resultExtras;
+        private boolean aborted;
+
+        Batch(String action, PendingResultData result) {
+            this.action = action;
+            this.result = result;
+            this.ordered = result != null && result.mOrderedHint;
+            if (ordered) {
+                resultCode = result.mResultCode;
+                resultData = result.mResultData;
+                resultExtras = result.mResultExtras;
+            }
+        }
+
+        void add(int vuid, ActivityInfo info, Intent intent) {
+            deliveries.add(new Delivery(vuid, info, intent));
+        }
+
+        private void release() {
+            if (pending.decrementAndGet() == 0) {
+                if (ordered) {
+                    mHandler.removeCallbacks(deadline);
+                }
+                finishResult();
+                onBatchComplete(this);
+            }
+        }
+
+        private synchronized void finishResult() {
+            if (result == null || resultFinished) {
+                return;
+            }
+            resultFinished = true;
+            if (ordered) {
+                result.mResultCode = resultCode;
+                result.mResultData = resultData;
+                result.mResultExtras = resultExtras;
+                result.mAbortBroadcast = aborted;
+            }
+            result.finish();
+        }
+    }
+
+    static final class Delivery {
+        final int vuid;
+        final int userId;
+        final ActivityInfo info;
+        final Intent intent;
+
+        Delivery(int vuid, ActivityInfo info, Intent intent) {
+            this.vuid = vuid;
+            this.userId = VUserHandle.getUserId(vuid);
+            this.info = info;
+            this.intent = intent;
+            if (intent.getComponent() == null) {
+                intent.setComponent(new ComponentName(info.packageName, info.name));
+            }
+        }
+    }
+
+    /**
+     * The token of one scheduled receiver, its finish releases the {@link Batch}.
+     */
+    static final class DeliveryToken extends Binder {
+        final Batch batch;
+
+        DeliveryToken(Batch batch) {
+            this.batch = batch;
+            batch.pending.incrementAndGet();
+        }
+    }
+
+    private static final class ColdStart {
+        final String key;
+        final int vuid;
+        final ActivityInfo info;
+        final List<String> actions = new ArrayList<>();
+        final List<Long> receivedTimes = new ArrayList<>();
+        final List<Delivery> deliveries = new ArrayList<>();
+        final List<PendingResultData> results = new ArrayList<>();
+
+        ColdStart(String key, int vuid, ActivityInfo info) {
+            this.key = key;
+            this.vuid = vuid;
+            this.info = info;
+        }
+    }
+
+    private static final class ActionStats {
+        int broadcasts;
+        int deliveries;
+        int completed;
+        int coldStarts;
+        int deferred;
+        long totalDispatchLatency;
+        long maxDispatchLatency;
+        long totalCompleteLatency;
+        long maxCompleteLatency;
+    }
+}
@@ -2,35 +2,48 @@ package com.lody.virtual.server.am;
 
 import android.app.DownloadManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
+import android.os.SystemClock;
 
 import com.lody.virtual.client.core.VirtualCore;
+import com.lody.virtual.client.env.Constants;
 import com.lody.virtual.client.env.SpecialComponentList;
 import com.lody.virtual.helper.collection.ArrayMap;
+import com.lody.virtual.helper.utils.ComponentUtils;
 import com.lody.virtual.helper.utils.Reflect;
 import com.lody.virtual.helper.utils.VLog;
+import com.lody.virtual.os.VUserHandle;
 import com.lody.virtual.remote.PendingResultData;
+import com.lody.virtual.server.pm.PackageCacheManager;
 import com.lody.virtual.server.pm.PackageSetting;
 import com.lody.virtual.server.pm.VAppManagerService;
+import com.lody.virtual.server.pm.VPackageManagerService;
+import com.lody.virtual.server.pm.VUserManagerService;
 import com.lody.virtual.server.pm.parser.VPackage;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import mirror.android.app.ContextImpl;
 import mirror.android.app.LoadedApkHuaWei;
@@ -51,13 +64,60 @@ public class BroadcastSystem {
      * MUST < 10000.
      */
     private static final int BROADCAST_TIME_OUT = 8500;
+    /**
+     * The timeouts are tracked by a hashed timer wheel,
+     * WHEEL_SIZE * WHEEL_TICK MUST > BROADCAST_TIME_OUT.
+     */
+    private static final int WHEEL_TICK = 500;
+    private static final int WHEEL_SIZE = 32;
+    /**
+     * Upper bounds (ms) of the receiver execution time histogram.
+     */
+    private static final long[] HISTOGRAM_BOUNDS = {10, 50, 100, 500, 1000, 5000};
     private static BroadcastSystem gDefault;
 
-    private final ArrayMap<String, List<BroadcastReceiver>> mReceivers = new ArrayMap<>();
+    private static final int FILTER_KIND_PLAIN = 0;
+    private static final int FILTER_KIND_SCHEME = 1;
+    private static final int FILTER_KIND_TYPED = 2;
+    private static final int FILTER_KIND_COUNT = 3;
+
+    private static final Comparator<StaticReceiverRecord> PRIORITY_ORDER = new Comparator<StaticReceiverRecord>() {
+        @Override
+        public int compare(StaticReceiverRecord lhs, StaticReceiverRecord rhs) {
+            int l = lhs.filter.getPriority();
+            int r = rhs.filter.getPriority();
+            return l > r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    /**
+     * Static receivers of the installed packages.
+     */
+    private final ArrayMap<String, List<StaticReceiverRecord>> mReceivers = new ArrayMap<>();
+    /**
+     * action -> static receivers, guarded by {@link #mReceivers}.
+     */
+    private final Map<String, List<StaticReceiverRecord>> mActionIndex = new HashMap<>();
+    /**
+     * Only accessed on the BroadcastThread.
+     */
+    private final MultiplexReceiver[] mMultiplexReceivers = new MultiplexReceiver[FILTER_KIND_COUNT];
+    private boolean mUpdatePending;
     private final Map<IBinder, BroadcastRecord> mBroadcastRecords = new HashMap<>();
+    /**
+     * Heads of the records timing out in each slot, guarded by {@link #mBroadcastRecords}.
+     */
+    private final BroadcastRecord[] mWheel = new BroadcastRecord[WHEEL_SIZE];
+    private int mWheelCursor;
+    private boolean mWheelTicking;
+    /**
+     * package -> receiver stats, guarded by itself.
+     */
+    private final Map<String, ReceiverStats> mReceiverStats = new HashMap<>();
     private final Context mContext;
     private final StaticScheduler mScheduler;
-    private final TimeoutHandler mTimeoutHandler;
+    private final Handler mTimeoutHandler;
+    private final BroadcastQueue mQueue;
     private final VActivityManagerService mAMS;
     private final VAppManagerService mApp;
 
@@ -70,7 +130,8 @@ public class BroadcastSystem {
         broadcastThread.start();
         anrThread.start();
         mScheduler = new StaticScheduler(broadcastThread.getLooper());
-        mTimeoutHandler = new TimeoutHandler(anrThread.getLooper());
+        mTimeoutHandler = new Handler(anrThread.getLooper());
+        mQueue = new BroadcastQueue(ams, mScheduler);
         fuckHuaWeiVerifier();
     }
 
@@ -144,25 +205,35 @@ public class BroadcastSystem {
 
     public void startApp(VPackage p) {
         PackageSetting setting = (PackageSetting) p.mExtras;
+        List<StaticReceiverRecord> records = new ArrayList<>();
         for (VPackage.ActivityComponent receiver : p.receivers) {
             ActivityInfo info = receiver.info;
-            List<BroadcastReceiver> receivers = mReceivers.get(p.packageName);
-            if (receivers == null) {
-                receivers = new ArrayList<>();
-                mReceivers.put(p.packageName, receivers);
-            }
             String componentAction = String.format("_VA_%s_%s", info.packageName, info.name);
-            IntentFilter componentFilter = new IntentFilter(componentAction);
-            BroadcastReceiver r = new StaticBroadcastReceiver(setting.appId, info, componentFilter);
-            mContext.registerReceiver(r, componentFilter, null, mScheduler);
-            receivers.add(r);
+            records.add(new StaticReceiverRecord(setting.appId, info, new IntentFilter(componentAction)));
             for (VPackage.ActivityIntentInfo ci : receiver.intents) {
                 IntentFilter cloneFilter = new IntentFilter(ci.filter);
                 SpecialComponentList.protectIntentFilter(cloneFilter);
-                r = new StaticBroadcastReceiver(setting.appId, info, cloneFilter);
-                mContext.registerReceiver(r, cloneFilter, null, mScheduler);
-                receivers.add(r);
+                records.add(new StaticReceiverRecord(setting.appId, info, cloneFilter));
+            }
+        }
+        synchronized (mReceivers) {
+            // The package may be updated, drop the receivers of the old version.
+            removeReceiversLocked(p.packageName);
+            if (!records.isEmpty()) {
+                mReceivers.put(p.packageName, records);
+                for (StaticReceiverRecord record : records) {
+                    for (int i = 0; i < record.filter.countActions(); i++) {
+                        String action = record.filter.getAction(i);
+                        List<StaticReceiverRecord> list = mActionIndex.get(action);
+                        if (list == null) {
+                            list = new ArrayList<>(1);
+                            mActionIndex.put(action, list);
+                        }
+                        list.add(record);
+                    }
+                }
             }
+            scheduleUpdateRegistrationsLocked();
         }
     }
 
@@ -174,43 +245,313 @@ public class BroadcastSystem {
                 Map.Entry<IBinder, BroadcastRecord> entry = iterator.next();
                 BroadcastRecord record = entry.getValue();
                 if (record.receiverInfo.packageName.equals(packageName)) {
-                    record.pendingResult.finish();
+                    unlinkLocked(record);
+                    finishPendingResult(record.pendingResult);
                     iterator.remove();
                 }
             }
         }
+        mQueue.removePackage(packageName);
+        synchronized (mReceivers) {
+            removeReceiversLocked(packageName);
+            scheduleUpdateRegistrationsLocked();
+        }
+    }
+
+    private void removeReceiversLocked(String packageName) {
+        List<StaticReceiverRecord> records = mReceivers.remove(packageName);
+        if (records == null) {
+            return;
+        }
+        for (StaticReceiverRecord record : records) {
+            for (int i = 0; i < record.filter.countActions(); i++) {
+                String action = record.filter.getAction(i);
+                List<StaticReceiverRecord> list = mActionIndex.get(action);
+                if (list != null) {
+                    list.remove(record);
+                    if (list.isEmpty()) {
+                        mActionIndex.remove(action);
+                    }
+                }
+            }
+        }
+    }
+
+    private void scheduleUpdateRegistrationsLocked() {
+        if (!mUpdatePending) {
+            mUpdatePending = true;
+            // Coalesce the changes, e.g. all packages loaded at boot only cause one registration.
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    updateRegistrations();
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs on the BroadcastThread, re-register the multiplexing receivers whose filter has changed.
+     */
+    private void updateRegistrations() {
+        FilterUnion[] unions = new FilterUnion[FILTER_KIND_COUNT];
+        synchronized (mReceivers) {
+            mUpdatePending = false;
+            for (List<StaticReceiverRecord> records : mReceivers.values()) {
+                for (StaticReceiverRecord record : records) {
+                    if (record.filter.countActions() == 0) {
+                        continue;
+                    }
+                    FilterUnion union = unions[record.kind];
+                    if (union == null) {
+                        union = new FilterUnion(record.kind);
+                        unions[record.kind] = union;
+                    }
+                    union.add(record.filter);
+                }
+            }
+        }
+        for (int kind = 0; kind < FILTER_KIND_COUNT; kind++) {
+            MultiplexReceiver old = mMultiplexReceivers[kind];
+            FilterUnion union = unions[kind];
+            if (old != null && old.union.equals(union)) {
+                continue;
+            }
+            MultiplexReceiver r = null;
+            if (union != null) {
+                r = new MultiplexReceiver(union);
+                try {
+                    mContext.registerReceiver(r, union.toIntentFilter(), null, mScheduler);
+                } catch (Throwable e) {
+                    VLog.e(TAG, "Unable to register the receiver : " + e);
+                    r = old;
+                    old = null;
+                }
+            }
+            mMultiplexReceivers[kind] = r;
+            if (old != null) {
+                mContext.unregisterReceiver(old);
+            }
+        }
+    }
+
+    private List<StaticReceiverRecord> findReceivers(Intent intent) {
+        List<StaticReceiverRecord> result = new ArrayList<>();
         synchronized (mReceivers) {
-            List<BroadcastReceiver> receivers = mReceivers.get(packageName);
-            if (receivers != null) {
-                for (BroadcastReceiver r : receivers) {
-                    mContext.unregisterReceiver(r);
+            List<StaticReceiverRecord> candidates = mActionIndex.get(intent.getAction());
+            if (candidates == null) {
+                return result;
+            }
+            for (StaticReceiverRecord record : candidates) {
+                if (record.filter.match(intent.getAction(), intent.getType(), intent.getScheme(),
+                        intent.getData(), intent.getCategories(), TAG) < 0) {
+                    continue;
+                }
+                boolean duplicate = false;
+                for (int i = 0; i < result.size(); i++) {
+                    StaticReceiverRecord one = result.get(i);
+                    // A receiver with several matched filters only receives it once,
+                    // with the highest priority of them.
+                    if (one.info == record.info) {
+                        if (record.filter.getPriority() > one.filter.getPriority()) {
+                            result.set(i, record);
+                        }
+                        duplicate = true;
+                        break;
+                    }
+                }
+                if (!duplicate) {
+                    result.add(record);
                 }
             }
-            mReceivers.remove(packageName);
         }
+        // The ordered lane delivers in this order.
+        Collections.sort(result, PRIORITY_ORDER);
+        return result;
+    }
+
+    private void finishPendingResult(PendingResultData res) {
+        res.finish();
+        if (res.mToken instanceof BroadcastQueue.DeliveryToken) {
+            mQueue.onDeliveryFinished((BroadcastQueue.DeliveryToken) res.mToken, res);
+        }
+    }
+
+    /**
+     * Deliver a broadcast sent by a virtual app to the static receivers
+     * inside VA directly, instead of going through the system AMS and
+     * the {@link MultiplexReceiver}s.
+     *
+     * @return one of {@link Constants#BROADCAST_NOT_ROUTED},
+     * {@link Constants#BROADCAST_ROUTED_STATIC} and {@link Constants#BROADCAST_ROUTED_ALL}.
+     */
+    public int dispatchVirtualBroadcast(Intent intent, int userId) {
+        if (mApp.isBooting() || !VUserManagerService.get().exists(userId)) {
+            return Constants.BROADCAST_NOT_ROUTED;
+        }
+        ComponentName component = intent.getComponent();
+        String targetPkg = component != null ? component.getPackageName() : intent.getPackage();
+        if (targetPkg != null && !mApp.isAppInstalled(targetPkg)) {
+            // The receiver lives outside, let the system deliver it.
+            return Constants.BROADCAST_NOT_ROUTED;
+        }
+        if ((intent.getFlags() & FLAG_RECEIVER_REGISTERED_ONLY) == 0) {
+            List<ResolveInfo> receivers = VPackageManagerService.get().queryIntentReceivers(intent, intent.getType(), 0, userId);
+            BroadcastQueue.Batch batch = mQueue.newBatch(intent.getAction(), null);
+            for (ResolveInfo resolveInfo : receivers) {
+                ActivityInfo info = resolveInfo.activityInfo;
+                PackageSetting ps = PackageCacheManager.getSetting(info.packageName);
+                if (ps == null || !ps.isInstalled(userId)) {
+                    continue;
+                }
+                batch.add(VUserHandle.getUid(userId, ps.appId), info, new Intent(intent));
+            }
+            if (!batch.deliveries.isEmpty()) {
+                mQueue.enqueue(batch);
+            }
+        }
+        if (component != null) {
+            // Registered receivers never match an explicit component.
+            return Constants.BROADCAST_ROUTED_ALL;
+        }
+        if (targetPkg != null && !mAMS.isAppRunning(targetPkg, userId)) {
+            // Nobody can register a receiver for a package which is not running.
+            return Constants.BROADCAST_ROUTED_ALL;
+        }
+        return Constants.BROADCAST_ROUTED_STATIC;
+    }
+
+    String dumpStats() {
+        StringBuilder sb = new StringBuilder(mQueue.dumpStats());
+        sb.append("Receiver execution time (ms), buckets <");
+        for (long bound : HISTOGRAM_BOUNDS) {
+            sb.append(bound).append('|');
+        }
+        sb.append("more:\n");
+        synchronized (mReceiverStats) {
+            for (Map.Entry<String, ReceiverStats> entry : mReceiverStats.entrySet()) {
+                ReceiverStats stats = entry.getValue();
+                sb.append("  ").append(entry.getKey())
+                        .append(" finished=").append(stats.finished)
+                        .append(" timeouts=").append(stats.timeouts)
+                        .append(" avg=").append(stats.finished == 0 ? 0 : stats.totalTime / stats.finished)
+                        .append(" max=").append(stats.maxTime)
+                        .append(" histogram=").append(Arrays.toString(stats.histogram))
+                        .append('\n');
+            }
+        }
+        return sb.toString();
     }
 
     void broadcastFinish(PendingResultData res) {
+        BroadcastRecord record;
         synchronized (mBroadcastRecords) {
-            BroadcastRecord record = mBroadcastRecords.remove(res.mToken);
-            if (record == null) {
-                VLog.e(TAG, "Unable to find the BroadcastRecord by token: " + res.mToken);
+            record = mBroadcastRecords.remove(res.mToken);
+            if (record != null) {
+                unlinkLocked(record);
             }
         }
-        mTimeoutHandler.removeMessages(0, res.mToken);
-        res.finish();
+        if (record == null) {
+            VLog.e(TAG, "Unable to find the BroadcastRecord by token: " + res.mToken);
+            res.finish();
+            return;
+        }
+        long time = SystemClock.uptimeMillis() - record.sentTime;
+        synchronized (mReceiverStats) {
+            getReceiverStatsLocked(record.receiverInfo.packageName).onFinished(time);
+        }
+        if (res != record.pendingResult) {
+            // The result set by the receiver, passed on to the next one of an ordered broadcast.
+            record.pendingResult.mResultCode = res.mResultCode;
+            record.pendingResult.mResultData = res.mResultData;
+            record.pendingResult.mResultExtras = res.mResultExtras;
+            record.pendingResult.mAbortBroadcast = res.mAbortBroadcast;
+        }
+        finishPendingResult(record.pendingResult);
     }
 
     void broadcastSent(int vuid, ActivityInfo receiverInfo, PendingResultData res) {
         BroadcastRecord record = new BroadcastRecord(vuid, receiverInfo, res);
         synchronized (mBroadcastRecords) {
-            mBroadcastRecords.put(res.mToken, record);
+            BroadcastRecord old = mBroadcastRecords.put(res.mToken, record);
+            if (old != null) {
+                unlinkLocked(old);
+            }
+            int ticks = (BROADCAST_TIME_OUT + WHEEL_TICK - 1) / WHEEL_TICK;
+            linkLocked(record, (mWheelCursor + ticks) & (WHEEL_SIZE - 1));
+            if (!mWheelTicking) {
+                mWheelTicking = true;
+                mTimeoutHandler.postDelayed(mWheelTick, WHEEL_TICK);
+            }
+        }
+    }
+
+    private void linkLocked(BroadcastRecord record, int slot) {
+        record.slot = slot;
+        record.prev = null;
+        record.next = mWheel[slot];
+        if (record.next != null) {
+            record.next.prev = record;
         }
-        Message msg = new Message();
-        msg.obj = res.mToken;
-        mTimeoutHandler.sendMessageDelayed(msg, BROADCAST_TIME_OUT);
+        mWheel[slot] = record;
     }
 
+    private void unlinkLocked(BroadcastRecord record) {
+        if (record.slot < 0) {
+            return;
+        }
+        if (record.prev != null) {
+            record.prev.next = record.next;
+        } else {
+            mWheel[record.slot] = record.next;
+        }
+        if (record.next != null) {
+            record.next.prev = record.prev;
+        }
+        record.prev = record.next = null;
+        record.slot = -1;
+    }
+
+    private ReceiverStats getReceiverStatsLocked(String packageName) {
+        ReceiverStats stats = mReceiverStats.get(packageName);
+        if (stats == null) {
+            stats = new ReceiverStats();
+            mReceiverStats.put(packageName, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Runs on the BroadcastAnrThread, expires the records of the next slot.
+     */
+    private final Runnable mWheelTick = new Runnable() {
+        @Override
+        public void run() {
+            BroadcastRecord expired;
+            synchronized (mBroadcastRecords) {
+                mWheelCursor = (mWheelCursor + 1) & (WHEEL_SIZE - 1);
+                expired = mWheel[mWheelCursor];
+                mWheel[mWheelCursor] = null;
+                for (BroadcastRecord r = expired; r != null; r = r.next) {
+                    mBroadcastRecords.remove(r.pendingResult.mToken);
+                    r.slot = -1;
+                }
+                if (mBroadcastRecords.isEmpty()) {
+                    mWheelTicking = false;
+                } else {
+                    mTimeoutHandler.postDelayed(this, WHEEL_TICK);
+                }
+            }
+            for (BroadcastRecord r = expired; r != null; r = r.next) {
+                VLog.w(TAG, "Broadcast timeout, cancel to dispatch it.");
+                synchronized (mReceiverStats) {
+                    getReceiverStatsLocked(r.receiverInfo.packageName).timeouts++;
+                }
+                finishPendingResult(r.pendingResult);
+            }
+        }
+    };
+
     private static final class StaticScheduler extends Handler {
 
         StaticScheduler(Looper looper) {
@@ -222,6 +563,13 @@ public class BroadcastSystem {
         int vuid;
         ActivityInfo receiverInfo;
         PendingResultData pendingResult;
+        final long sentTime = SystemClock.uptimeMillis();
+        /**
+         * Position in the timer wheel, guarded by {@link BroadcastSystem#mBroadcastRecords}.
+         */
+        int slot = -1;
+        BroadcastRecord prev;
+        BroadcastRecord next;
 
         BroadcastRecord(int vuid, ActivityInfo receiverInfo, PendingResultData pendingResult) {
             this.vuid = vuid;
@@ -230,52 +578,175 @@ public class BroadcastSystem {
         }
     }
 
-    private final class TimeoutHandler extends Handler {
-
-        TimeoutHandler(Looper looper) {
-            super(looper);
-        }
+    private static final class ReceiverStats {
+        int finished;
+        int timeouts;
+        long totalTime;
+        long maxTime;
+        final int[] histogram = new int[HISTOGRAM_BOUNDS.length + 1];
 
-        @Override
-        public void handleMessage(Message msg) {
-            IBinder token = (IBinder) msg.obj;
-            BroadcastRecord r = mBroadcastRecords.remove(token);
-            if (r != null) {
-                VLog.w(TAG, "Broadcast timeout, cancel to dispatch it.");
-                r.pendingResult.finish();
+        void onFinished(long time) {
+            finished++;
+            totalTime += time;
+            maxTime = Math.max(maxTime, time);
+            int bucket = 0;
+            while (bucket < HISTOGRAM_BOUNDS.length && time >= HISTOGRAM_BOUNDS[bucket]) {
+                bucket++;
             }
+            histogram[bucket]++;
         }
     }
 
+    private static final class StaticReceiverRecord {
+        final int appId;
+        final ActivityInfo info;
+        final IntentFilter filter;
+        final int kind;
 
-    private final class StaticBroadcastReceiver extends BroadcastReceiver {
-        private int appId;
-        private ActivityInfo info;
-        @SuppressWarnings("unused")
-        private IntentFilter filter;
-
-        private StaticBroadcastReceiver(int appId, ActivityInfo info, IntentFilter filter) {
+        StaticReceiverRecord(int appId, ActivityInfo info, IntentFilter filter) {
             this.appId = appId;
             this.info = info;
             this.filter = filter;
+            if (filter.countDataTypes() > 0) {
+                kind = FILTER_KIND_TYPED;
+            } else if (filter.countDataSchemes() > 0) {
+                kind = FILTER_KIND_SCHEME;
+            } else {
+                kind = FILTER_KIND_PLAIN;
+            }
+        }
+    }
+
+    /**
+     * The union of the static filters of one kind, it may match more than
+     * the filters themselves, the receivers are verified again on dispatch.
+     */
+    private static final class FilterUnion {
+        final int kind;
+        final Set<String> actions = new HashSet<>();
+        final Set<String> categories = new HashSet<>();
+        final Set<String> schemes = new HashSet<>();
+
+        FilterUnion(int kind) {
+            this.kind = kind;
+        }
+
+        void add(IntentFilter filter) {
+            for (int i = 0; i < filter.countActions(); i++) {
+                actions.add(filter.getAction(i));
+            }
+            for (int i = 0; i < filter.countCategories(); i++) {
+                categories.add(filter.getCategory(i));
+            }
+            for (int i = 0; i < filter.countDataSchemes(); i++) {
+                schemes.add(filter.getDataScheme(i));
+            }
+            if (kind == FILTER_KIND_TYPED && filter.countDataSchemes() == 0) {
+                // A typed filter without scheme accepts these implicitly.
+                schemes.add("");
+                schemes.add(ContentResolver.SCHEME_CONTENT);
+                schemes.add(ContentResolver.SCHEME_FILE);
+            }
+        }
+
+        IntentFilter toIntentFilter() {
+            IntentFilter filter = new IntentFilter();
+            for (String action : actions) {
+                filter.addAction(action);
+            }
+            for (String category : categories) {
+                filter.addCategory(category);
+            }
+            for (String scheme : schemes) {
+                filter.addDataScheme(scheme);
+            }
+            if (kind == FILTER_KIND_TYPED) {
+                try {
+                    filter.addDataType("*/*");
+                } catch (IntentFilter.MalformedMimeTypeException e) {
+                    // ignore
+                }
+            }
+            return filter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            FilterUnion that = (FilterUnion) o;
+            return kind == that.kind
+                    && actions.equals(that.actions)
+                    && categories.equals(that.categories)
+                    && schemes.equals(that.schemes);
+        }
+
+        @Override
+        public int hashCode() {
+            return actions.hashCode();
+        }
+    }
+
+    /**
+     * Receives the union of the static filters of one kind for all packages,
+     * and dispatches the broadcasts to the matched static receivers.
+     */
+    private final class MultiplexReceiver extends BroadcastReceiver {
+        private final FilterUnion union;
+
+        private MultiplexReceiver(FilterUnion union) {
+            this.union = union;
         }
 
         @Override
         public void onReceive(Context context, Intent intent) {
+            if (mMultiplexReceivers[union.kind] != this) {
+                // Replaced by a new registration.
+                return;
+            }
             if (mApp.isBooting()) {
                 return;
             }
             if ((intent.getFlags() & FLAG_RECEIVER_REGISTERED_ONLY) != 0 || isInitialStickyBroadcast()) {
                 return;
             }
-            String privilegePkg = intent.getStringExtra("_VA_|_privilege_pkg_");
-            if (privilegePkg != null && !info.packageName.equals(privilegePkg)) {
+            if (intent.getBooleanExtra("_VA_|_static_routed_", false)) {
+                // Already delivered by dispatchVirtualBroadcast.
                 return;
             }
-            PendingResult result = goAsync();
-            if (!mAMS.handleStaticBroadcast(appId, info, intent, new PendingResultData(result))) {
-                result.finish();
+            List<StaticReceiverRecord> records = findReceivers(intent);
+            if (records.isEmpty()) {
+                return;
+            }
+            // Unwrap the broadcast once for all of the receivers.
+            Intent realIntent = intent.getParcelableExtra("_VA_|_intent_");
+            ComponentName component = intent.getParcelableExtra("_VA_|_component_");
+            int userId = intent.getIntExtra("_VA_|_user_id_", VUserHandle.USER_NULL);
+            if (realIntent == null) {
+                return;
+            }
+            if (userId < 0) {
+                VLog.w(TAG, "Sent a broadcast without userId " + realIntent);
+                return;
+            }
+            String originAction = SpecialComponentList.unprotectAction(realIntent.getAction());
+            if (originAction != null) {
+                // restore to origin action.
+                realIntent.setAction(originAction);
+            }
+            String privilegePkg = intent.getStringExtra("_VA_|_privilege_pkg_");
+            BroadcastQueue.Batch batch = mQueue.newBatch(realIntent.getAction(), new PendingResultData(goAsync()));
+            for (StaticReceiverRecord record : records) {
+                if (privilegePkg != null && !record.info.packageName.equals(privilegePkg)) {
+                    continue;
+                }
+                if (component != null && !ComponentUtils.toComponentName(record.info).equals(component)) {
+                    // Verify the component.
+                    continue;
+                }
+                batch.add(VUserHandle.getUid(userId, record.appId), record.info, new Intent(realIntent));
             }
+            mQueue.enqueue(batch);
         }
     }
 }
@@ -0,0 +1,128 @@
+package com.lody.virtual.server.am;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+
+import com.lody.virtual.remote.LaunchTrace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the phases of the recent activity launches, keyed by the launch id
+ * carried in the stub intent.
+ */
+class LaunchTracer {
+
+    /**
+     * The launches kept for the breakdowns and the rolling percentiles.
+     */
+    private static final int MAX_LAUNCHES = 64;
+
+    /**
+     * The ids are also the tokens of the compact stub intents which may be
+     * persisted in the recents, never reuse them after a restart.
+     */
+    private long mNextLaunchId = System.currentTimeMillis() << 12;
+    private final LinkedHashMap<Long, Launch> mLaunches = new LinkedHashMap<Long, Launch>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Launch> eldest) {
+            return size() > MAX_LAUNCHES;
+        }
+    };
+
+    long beginLaunch(ComponentName component, int userId) {
+        synchronized (mLaunches) {
+            long launchId = mNextLaunchId++;
+            Launch launch = new Launch(component, userId);
+            launch.add(LaunchTrace.PHASE_START_ACTIVITY, SystemClock.uptimeMillis());
+            mLaunches.put(launchId, launch);
+            return launchId;
+        }
+    }
+
+    void trace(long launchId, String phase, long time) {
+        synchronized (mLaunches) {
+            Launch launch = mLaunches.get(launchId);
+            if (launch != null) {
+                launch.add(phase, time);
+            }
+        }
+    }
+
+    void trace(long launchId, String phase) {
+        trace(launchId, phase, SystemClock.uptimeMillis());
+    }
+
+    List<LaunchTrace> getRecentLaunches() {
+        synchronized (mLaunches) {
+            List<LaunchTrace> traces = new ArrayList<>(mLaunches.size());
+            for (Map.Entry<Long, Launch> entry : mLaunches.entrySet()) {
+                traces.add(entry.getValue().toTrace(entry.getKey()));
+            }
+            return traces;
+        }
+    }
+
+    /**
+     * @return p50, p90 and p99 of the time from the start to the phase over the recent launches.
+     */
+    long[] getPercentiles(String phase) {
+        List<Long> offsets = new ArrayList<>();
+        synchronized (mLaunches) {
+            for (Launch launch : mLaunches.values()) {
+                long offset = launch.getOffset(phase);
+                if (offset >= 0) {
+                    offsets.add(offset);
+                }
+            }
+        }
+        long[] result = new long[3];
+        if (offsets.isEmpty()) {
+            Arrays.fill(result, -1);
+            return result;
+        }
+        long[] sorted = new long[offsets.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = offsets.get(i);
+        }
+        Arrays.sort(sorted);
+        result[0] = sorted[(sorted.length - 1) * 50 / 100];
+        result[1] = sorted[(sorted.length - 1) * 90 / 100];
+        result[2] = sorted[(sorted.length - 1) * 99 / 100];
+        return result;
+    }
+
+    private static final class Launch {
+        final ComponentName component;
+        final int userId;
+        final List<String> phases = new ArrayList<>(10);
+        final List<Long> times = new ArrayList<>(10);
+
+        Launch(ComponentName component, int userId) {
+            this.component = component;
+            this.userId = userId;
+        }
+
+        void add(String phase, long time) {
+            phases.add(phase);
+            times.add(time);
+        }
+
+        long getOffset(String phase) {
+            int index = phases.indexOf(phase);
+            return index < 0 ? -1 : times.get(index) - times.get(0);
+        }
+
+        LaunchTrace toTrace(long launchId) {
+            long[] t = new long[times.size()];
+            for (int i = 0; i < t.length; i++) {
+                t[i] = times.get(i);
+            }
+            return new LaunchTrace(launchId, component, userId, phases.toArray(new String[phases.size()]), t);
+        }
+    }
+}
@@ -24,6 +24,10 @@ final class ProcessRecord extends Binder implements Comparable<ProcessRecord> {
 	public int vpid;
 	public int userId;
 	boolean doneExecuting;
+	/**
+	 * The time the stub finished the init of this process.
+	 */
+	long initTime;
     int priority;
 
 	public ProcessRecord(ApplicationInfo info, String processName, int vuid, int vpid) {
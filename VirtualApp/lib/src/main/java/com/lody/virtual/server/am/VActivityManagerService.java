@@ -17,7 +17,6 @@ import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
 import android.net.Uri;
-import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -34,6 +33,7 @@ import com.lody.virtual.client.env.SpecialComponentList;
 import com.lody.virtual.client.ipc.ProviderCall;
 import com.lody.virtual.client.ipc.VNotificationManager;
 import com.lody.virtual.client.stub.VASettings;
+import com.lody.virtual.helper.ResourcesCache;
 import com.lody.virtual.helper.collection.ArrayMap;
 import com.lody.virtual.helper.collection.SparseArray;
 import com.lody.virtual.helper.compat.ActivityManagerCompat;
@@ -44,11 +44,16 @@ import com.lody.virtual.helper.utils.ComponentUtils;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.os.VBinder;
 import com.lody.virtual.os.VUserHandle;
+import com.lody.virtual.remote.AppBindInfo;
 import com.lody.virtual.remote.AppTaskInfo;
 import com.lody.virtual.remote.BadgerInfo;
+import com.lody.virtual.remote.LaunchTrace;
 import com.lody.virtual.remote.PendingIntentData;
 import com.lody.virtual.remote.PendingResultData;
+import com.lody.virtual.remote.StubActivityRecord;
 import com.lody.virtual.remote.VParceledListSlice;
+import com.lody.virtual.server.accounts.VAccountManagerService;
+import com.lody.virtual.server.device.VDeviceManagerService;
 import com.lody.virtual.server.interfaces.IActivityManager;
 import com.lody.virtual.server.interfaces.IProcessObserver;
 import com.lody.virtual.server.pm.PackageCacheManager;
@@ -56,6 +61,7 @@ import com.lody.virtual.server.pm.PackageSetting;
 import com.lody.virtual.server.pm.VAppManagerService;
 import com.lody.virtual.server.pm.VPackageManagerService;
 import com.lody.virtual.server.secondary.BinderDelegateService;
+import com.lody.virtual.server.vs.VirtualStorageService;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -76,12 +82,11 @@ import static com.lody.virtual.os.VUserHandle.getUserId;
  */
 public class VActivityManagerService implements IActivityManager {
 
-    private static final boolean BROADCAST_NOT_STARTED_PKG = false;
-
     private static final AtomicReference<VActivityManagerService> sService = new AtomicReference<>();
     private static final String TAG = VActivityManagerService.class.getSimpleName();
     private final SparseArray<ProcessRecord> mPidsSelfLocked = new SparseArray<ProcessRecord>();
     private final ActivityStack mMainStack = new ActivityStack(this);
+    private final LaunchTracer mLaunchTracer = new LaunchTracer();
     private final Set<ServiceRecord> mHistory = new HashSet<ServiceRecord>();
     private final ProcessMap<ProcessRecord> mProcessNames = new ProcessMap<ProcessRecord>();
     private final PendingIntents mPendingIntents = new PendingIntents();
@@ -109,7 +114,7 @@ public class VActivityManagerService implements IActivityManager {
     }
 
     public void onCreate(Context context) {
-        AttributeCache.init(context);
+        AttributeCache.init();
         PackageManager pm = context.getPackageManager();
         PackageInfo packageInfo = null;
         try {
@@ -182,7 +187,7 @@ public class VActivityManagerService implements IActivityManager {
 
     @Override
     public void onActivityCreated(ComponentName component, ComponentName caller, IBinder token, Intent intent, String affinity, int taskId, int launchMode, int flags) {
-        int pid = Binder.getCallingPid();
+        int pid = getCallingPid();
         ProcessRecord targetApp = findProcessLocked(pid);
         if (targetApp != null) {
             mMainStack.onActivityCreated(targetApp, component, caller, token, intent, affinity, taskId, launchMode, flags);
@@ -195,9 +200,8 @@ public class VActivityManagerService implements IActivityManager {
     }
 
     @Override
-    public boolean onActivityDestroyed(int userId, IBinder token) {
-        ActivityRecord r = mMainStack.onActivityDestroyed(userId, token);
-        return r != null;
+    public void onActivityDestroyed(int userId, IBinder token) {
+        mMainStack.onActivityDestroyed(userId, token);
     }
 
     @Override
@@ -643,7 +647,8 @@ public class VActivityManagerService implements IActivityManager {
         synchronized (this) {
             ProcessRecord app = findProcessLocked(callingPid);
             if (app == null) {
-                ApplicationInfo appInfo = VPackageManagerService.get().getApplicationInfo(packageName, 0, userId);
+                // The info is shared by the package manager's cache, copy it before changing the flags.
+                ApplicationInfo appInfo = new ApplicationInfo(VPackageManagerService.get().getApplicationInfo(packageName, 0, userId));
                 appInfo.flags |= ApplicationInfo.FLAG_HAS_CODE;
                 String stubProcessName = getProcessName(callingPid);
                 int vpid = parseVPid(stubProcessName);
@@ -809,12 +814,70 @@ public class VActivityManagerService implements IActivityManager {
         if (res == null) {
             return null;
         }
+        app.initTime = SystemClock.uptimeMillis();
         int pid = res.getInt("_VA_|_pid_");
         IBinder clientBinder = BundleCompat.getBinder(res, "_VA_|_client_");
         attachClient(pid, clientBinder);
         return app;
     }
 
+    LaunchTracer getLaunchTracer() {
+        return mLaunchTracer;
+    }
+
+    @Override
+    public void reportLaunchTrace(long launchId, String[] phases, long[] times) {
+        for (int i = 0; i < phases.length; i++) {
+            mLaunchTracer.trace(launchId, phases[i], times[i]);
+        }
+    }
+
+    @Override
+    public List<LaunchTrace> getRecentLaunchTraces() {
+        return mLaunchTracer.getRecentLaunches();
+    }
+
+    @Override
+    public long[] getLaunchPercentiles(String phase) {
+        return mLaunchTracer.getPercentiles(phase);
+    }
+
+    @Override
+    public StubActivityRecord getStubActivityRecord(long launchId, ComponentName component, int userId) {
+        StubActivityRecord r = mMainStack.getPendingLaunch(launchId);
+        if (r != null) {
+            return r;
+        }
+        // The token has been dropped, e.g. the server has restarted,
+        // resolve the component again from the installed package.
+        ActivityInfo info = VPackageManagerService.get().getActivityInfo(component, 0, userId);
+        if (info == null) {
+            return null;
+        }
+        r = new StubActivityRecord(new Intent().setComponent(component), info, null, userId);
+        r.launchId = launchId;
+        return r;
+    }
+
+    @Override
+    public AppBindInfo getAppBindInfo(String packageName, String processName) {
+        // Built without the lock of VAMS, for the process calling it.
+        int vuid = getUidByPid(getCallingPid());
+        int userId = VUserHandle.getUserId(vuid);
+        AppBindInfo bindInfo = new AppBindInfo();
+        bindInfo.processName = processName;
+        bindInfo.installedAppInfo = VAppManagerService.get().getInstalledAppInfo(packageName, 0);
+        bindInfo.appInfo = VPackageManagerService.get().getApplicationInfo(packageName, 0, userId);
+        bindInfo.providers = VPackageManagerService.get().queryContentProviders(processName, vuid, PackageManager.GET_META_DATA).getList();
+        bindInfo.deviceInfo = VDeviceManagerService.get().getDeviceInfo(userId);
+        bindInfo.installedApps = VAppManagerService.get().getInstalledApps(0);
+        VirtualStorageService vs = VirtualStorageService.get();
+        if (vs.isVirtualStorageEnable(packageName, userId)) {
+            bindInfo.virtualStorage = vs.getVirtualStorage(packageName, userId);
+        }
+        return bindInfo;
+    }
+
     private int queryFreeStubProcessLocked() {
         for (int vpid = 0; vpid < VASettings.STUB_COUNT; vpid++) {
             int N = mPidsSelfLocked.size();
@@ -928,7 +991,18 @@ public class VActivityManagerService implements IActivityManager {
 
     @Override
     public void dump() {
+        VLog.d(TAG, dumpBroadcastStats());
+        VLog.d(TAG, VPackageManagerService.get().dumpResolveCacheStats());
+        VLog.d(TAG, "Resources cache: " + ResourcesCache.get().dumpStats());
+        VAccountManagerService accounts = VAccountManagerService.get();
+        if (accounts != null) {
+            VLog.d(TAG, "Auth token cache: " + accounts.dumpAuthTokenStats());
+        }
+    }
 
+    @Override
+    public String dumpBroadcastStats() {
+        return BroadcastSystem.get().dumpStats();
     }
 
     @Override
@@ -948,9 +1022,9 @@ public class VActivityManagerService implements IActivityManager {
     }
 
     @Override
-    public void appDoneExecuting() {
+    public void appDoneExecuting(int pid) {
         synchronized (mPidsSelfLocked) {
-            ProcessRecord r = mPidsSelfLocked.get(getCallingPid());
+            ProcessRecord r = mPidsSelfLocked.get(pid);
             if (r != null) {
                 r.doneExecuting = true;
                 r.lock.open();
@@ -1034,50 +1108,37 @@ public class VActivityManagerService implements IActivityManager {
         context.sendBroadcast(intent);
     }
 
-    boolean handleStaticBroadcast(int appId, ActivityInfo info, Intent intent,
-                                  PendingResultData result) {
-        Intent realIntent = intent.getParcelableExtra("_VA_|_intent_");
-        ComponentName component = intent.getParcelableExtra("_VA_|_component_");
-        int userId = intent.getIntExtra("_VA_|_user_id_", VUserHandle.USER_NULL);
-        if (realIntent == null) {
-            return false;
-        }
-        if (userId < 0) {
-            VLog.w(TAG, "Sent a broadcast without userId " + realIntent);
-            return false;
-        }
-        int vuid = VUserHandle.getUid(userId, appId);
-        return handleUserBroadcast(vuid, info, component, realIntent, result);
-    }
-
-    private boolean handleUserBroadcast(int vuid, ActivityInfo info, ComponentName component, Intent realIntent, PendingResultData result) {
-        if (component != null && !ComponentUtils.toComponentName(info).equals(component)) {
-            // Verify the component.
-            return false;
-        }
-        String originAction = SpecialComponentList.unprotectAction(realIntent.getAction());
-        if (originAction != null) {
-            // restore to origin action.
-            realIntent.setAction(originAction);
+    /**
+     * @return the running process of the receiver, or null.
+     */
+    ProcessRecord findReceiverProcess(int vuid, ActivityInfo info) {
+        synchronized (this) {
+            ProcessRecord r = findProcessLocked(info.processName, vuid);
+            if (r != null && r.appThread != null) {
+                return r;
+            }
+            return null;
         }
-        handleStaticBroadcastAsUser(vuid, info, realIntent, result);
-        return true;
     }
 
-    private void handleStaticBroadcastAsUser(int vuid, ActivityInfo info, Intent intent,
-                                             PendingResultData result) {
+    /**
+     * Start the process of a receiver, called by the {@link BroadcastQueue} off the BroadcastThread.
+     */
+    ProcessRecord startReceiverProcess(int vuid, ActivityInfo info) {
         synchronized (this) {
-            ProcessRecord r = findProcessLocked(info.processName, vuid);
-            if (BROADCAST_NOT_STARTED_PKG && r == null) {
-                r = startProcessIfNeedLocked(info.processName, getUserId(vuid), info.packageName);
-            }
+            ProcessRecord r = startProcessIfNeedLocked(info.processName, getUserId(vuid), info.packageName);
             if (r != null && r.appThread != null) {
-                performScheduleReceiver(r.client, vuid, info, intent,
-                        result);
+                return r;
             }
+            return null;
         }
     }
 
+    void scheduleReceiver(ProcessRecord r, int vuid, ActivityInfo info, Intent intent,
+                          PendingResultData result) {
+        performScheduleReceiver(r.client, vuid, info, intent, result);
+    }
+
     private void performScheduleReceiver(IVClient client, int vuid, ActivityInfo info, Intent intent,
                                          PendingResultData result) {
 
@@ -1087,7 +1148,7 @@ public class VActivityManagerService implements IActivityManager {
             client.scheduleReceiver(info.processName, componentName, intent, result);
         } catch (Throwable e) {
             if (result != null) {
-                result.finish();
+                BroadcastSystem.get().broadcastFinish(result);
             }
         }
     }
@@ -1097,6 +1158,11 @@ public class VActivityManagerService implements IActivityManager {
         BroadcastSystem.get().broadcastFinish(res);
     }
 
+    @Override
+    public int broadcastIntentInContainer(Intent intent, int userId) {
+        return BroadcastSystem.get().dispatchVirtualBroadcast(intent, userId);
+    }
+
     @Override
     public void notifyBadgerChange(BadgerInfo info) {
         Intent intent = new Intent(VASettings.ACTION_BADGER_CHANGE);
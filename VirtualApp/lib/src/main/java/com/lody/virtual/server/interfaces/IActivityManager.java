@@ -5,6 +5,7 @@ import android.content.*;
 import android.content.pm.*;
 import android.os.*;
 
+import com.lody.virtual.helper.ipcbus.OneWay;
 import com.lody.virtual.remote.*;
 
 /**
@@ -14,6 +15,17 @@ public interface IActivityManager {
 
     int initProcess(String packageName, String processName, int userId) throws RemoteException;
 
+    AppBindInfo getAppBindInfo(String packageName, String processName) throws RemoteException;
+
+    @OneWay
+    void reportLaunchTrace(long launchId, String[] phases, long[] times) throws RemoteException;
+
+    java.util.List<LaunchTrace> getRecentLaunchTraces() throws RemoteException;
+
+    long[] getLaunchPercentiles(String phase) throws RemoteException;
+
+    StubActivityRecord getStubActivityRecord(long launchId, ComponentName component, int userId) throws RemoteException;
+
     int getFreeStubCount() throws RemoteException;
 
     int getSystemPid() throws RemoteException;
@@ -38,11 +50,14 @@ public interface IActivityManager {
 
     void dump() throws RemoteException;
 
+    String dumpBroadcastStats() throws RemoteException;
+
     String getInitialPackage(int pid) throws RemoteException;
 
     void handleApplicationCrash() throws RemoteException;
 
-    void appDoneExecuting() throws RemoteException;
+    @OneWay
+    void appDoneExecuting(int pid) throws RemoteException;
 
     int startActivities(Intent[] intents, String[] resolvedTypes, IBinder token, Bundle options, int userId) throws RemoteException;
 
@@ -50,9 +65,11 @@ public interface IActivityManager {
 
     void onActivityCreated(ComponentName component, ComponentName caller, IBinder token, Intent intent, String affinity, int taskId, int launchMode, int flags) throws RemoteException;
 
+    @OneWay
     void onActivityResumed(int userId, IBinder token) throws RemoteException;
 
-    boolean onActivityDestroyed(int userId, IBinder token) throws RemoteException;
+    @OneWay
+    void onActivityDestroyed(int userId, IBinder token) throws RemoteException;
 
     ComponentName getActivityClassForToken(int userId, IBinder token) throws RemoteException;
 
@@ -102,5 +119,7 @@ public interface IActivityManager {
 
     void broadcastFinish(PendingResultData res) throws RemoteException;
 
+    int broadcastIntentInContainer(Intent intent, int userId) throws RemoteException;
+
     void notifyBadgerChange(BadgerInfo info) throws RemoteException;
 }
@@ -5,6 +5,7 @@ import android.content.pm.*;
 import android.os.IBinder;
 import android.os.RemoteException;
 
+import com.lody.virtual.remote.PackageFilter;
 import com.lody.virtual.remote.VParceledListSlice;
 
 import java.util.List;
@@ -46,9 +47,9 @@ public interface IPackageManager {
 
     List<ResolveInfo> queryIntentContentProviders(Intent intent, String resolvedType, int flags, int userId) throws RemoteException;
 
-    VParceledListSlice<PackageInfo> getInstalledPackages(int flags, int userId) throws RemoteException;
+    VParceledListSlice<PackageInfo> getInstalledPackages(int flags, int userId, PackageFilter filter) throws RemoteException;
 
-    VParceledListSlice<ApplicationInfo> getInstalledApplications(int flags, int userId) throws RemoteException;
+    VParceledListSlice<ApplicationInfo> getInstalledApplications(int flags, int userId, PackageFilter filter) throws RemoteException;
 
     PermissionInfo getPermissionInfo(String name, int flags) throws RemoteException;
 
@@ -7,29 +7,36 @@ import android.app.job.JobWorkItem;
 import android.content.ComponentName;
 import android.content.Context;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.PersistableBundle;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.ipc.VJobScheduler;
 import com.lody.virtual.client.stub.VASettings;
+import com.lody.virtual.helper.utils.AtomicFile;
 import com.lody.virtual.helper.utils.Singleton;
 import com.lody.virtual.os.VBinder;
 import com.lody.virtual.os.VEnvironment;
 import com.lody.virtual.server.interfaces.IJobService;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 
 
 /**
@@ -41,8 +48,19 @@ public class VJobSchedulerService implements IJobService {
     private static final String TAG = VJobScheduler.class.getSimpleName();
 
     private static final int JOB_FILE_VERSION = 1;
+    /**
+     * The changes in this window are written to the job file at once.
+     */
+    private static final long SAVE_DELAY = 500;
     private final Map<JobId, JobConfig> mJobStore = new HashMap<>();
+    /**
+     * Indexes of {@link #mJobStore}, guarded by it.
+     */
+    private final SparseArray<JobId> mJobsByVirtualId = new SparseArray<>();
+    private final SparseArray<Set<JobId>> mJobsByVuid = new SparseArray<>();
     private int mGlobalJobId;
+    private final Handler mSaveHandler;
+    private boolean mSavePending;
 
     private final JobScheduler mScheduler = (JobScheduler)
             VirtualCore.get().getContext().getSystemService(Context.JOB_SCHEDULER_SERVICE);
@@ -51,6 +69,9 @@ public class VJobSchedulerService implements IJobService {
 
     private VJobSchedulerService() {
         mJobProxyComponent = new ComponentName(VirtualCore.get().getHostPkg(), VASettings.STUB_JOB);
+        HandlerThread saveThread = new HandlerThread("JobStoreWriter");
+        saveThread.start();
+        mSaveHandler = new Handler(saveThread.getLooper());
         readJobs();
     }
 
@@ -186,98 +207,148 @@ public class VJobSchedulerService implements IJobService {
         int id = job.getId();
         ComponentName service = job.getService();
         JobId jobId = new JobId(vuid, service.getPackageName(), id);
+        JobConfig config;
+        synchronized (mJobStore) {
+            config = putJobLocked(jobId, service.getClassName(), job.getExtras());
+        }
+        mirror.android.app.job.JobInfo.jobId.set(job, config.virtualJobId);
+        mirror.android.app.job.JobInfo.service.set(job, mJobProxyComponent);
+        return mScheduler.schedule(job);
+    }
+
+    private JobConfig putJobLocked(JobId jobId, String serviceName, PersistableBundle extras) {
         JobConfig config = mJobStore.get(jobId);
         if (config == null) {
-            config = new JobConfig(mGlobalJobId++, service.getClassName(), job.getExtras());
+            config = new JobConfig(mGlobalJobId++, serviceName, extras);
             mJobStore.put(jobId, config);
+            indexJobLocked(jobId, config);
         } else {
-            config.serviceName = service.getClassName();
-            config.extras = job.getExtras();
+            config.serviceName = serviceName;
+            config.extras = extras;
         }
-        saveJobs();
-        mirror.android.app.job.JobInfo.jobId.set(job, config.virtualJobId);
-        mirror.android.app.job.JobInfo.service.set(job, mJobProxyComponent);
-        return mScheduler.schedule(job);
+        scheduleSaveLocked();
+        return config;
     }
 
-    private void saveJobs() {
-        File jobFile = VEnvironment.getJobConfigFile();
-        Parcel p = Parcel.obtain();
-        try {
-            p.writeInt(JOB_FILE_VERSION);
-            p.writeInt(mJobStore.size());
-            for (Map.Entry<JobId, JobConfig> entry : mJobStore.entrySet()) {
-                entry.getKey().writeToParcel(p, 0);
-                entry.getValue().writeToParcel(p, 0);
-            }
-            FileOutputStream fos = new FileOutputStream(jobFile);
-            fos.write(p.marshall());
-            fos.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            p.recycle();
+    private void indexJobLocked(JobId jobId, JobConfig config) {
+        mJobsByVirtualId.put(config.virtualJobId, jobId);
+        Set<JobId> jobs = mJobsByVuid.get(jobId.vuid);
+        if (jobs == null) {
+            jobs = new HashSet<>();
+            mJobsByVuid.put(jobId.vuid, jobs);
         }
+        jobs.add(jobId);
     }
 
-    private void readJobs() {
-        File jobFile = VEnvironment.getJobConfigFile();
-        if (!jobFile.exists()) {
+    private void removeJobLocked(JobId jobId) {
+        JobConfig config = mJobStore.remove(jobId);
+        if (config == null) {
             return;
         }
+        mScheduler.cancel(config.virtualJobId);
+        mJobsByVirtualId.remove(config.virtualJobId);
+        Set<JobId> jobs = mJobsByVuid.get(jobId.vuid);
+        if (jobs != null) {
+            jobs.remove(jobId);
+            if (jobs.isEmpty()) {
+                mJobsByVuid.remove(jobId.vuid);
+            }
+        }
+        scheduleSaveLocked();
+    }
+
+    /**
+     * The jobs of an uid, copied so they can be removed while iterating.
+     */
+    private List<JobId> getJobsLocked(int vuid) {
+        Set<JobId> jobs = mJobsByVuid.get(vuid);
+        return jobs != null ? new ArrayList<>(jobs) : Collections.<JobId>emptyList();
+    }
+
+    /**
+     * Write the job file after {@link #SAVE_DELAY}, with all the changes made until then.
+     */
+    private void scheduleSaveLocked() {
+        if (!mSavePending) {
+            mSavePending = true;
+            mSaveHandler.postDelayed(mSaveRunnable, SAVE_DELAY);
+        }
+    }
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            byte[] data;
+            Parcel p = Parcel.obtain();
+            try {
+                synchronized (mJobStore) {
+                    mSavePending = false;
+                    p.writeInt(JOB_FILE_VERSION);
+                    p.writeInt(mJobStore.size());
+                    for (Map.Entry<JobId, JobConfig> entry : mJobStore.entrySet()) {
+                        entry.getKey().writeToParcel(p, 0);
+                        entry.getValue().writeToParcel(p, 0);
+                    }
+                }
+                data = p.marshall();
+            } finally {
+                p.recycle();
+            }
+            AtomicFile jobFile = new AtomicFile(VEnvironment.getJobConfigFile());
+            FileOutputStream fos = null;
+            try {
+                fos = jobFile.startWrite();
+                fos.write(data);
+                jobFile.finishWrite(fos);
+            } catch (IOException e) {
+                jobFile.failWrite(fos);
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private void readJobs() {
+        AtomicFile jobFile = new AtomicFile(VEnvironment.getJobConfigFile());
         Parcel p = Parcel.obtain();
         try {
-            FileInputStream fis = new FileInputStream(jobFile);
-            byte[] bytes = new byte[(int) jobFile.length()];
-            int len = fis.read(bytes);
-            fis.close();
-            if (len != bytes.length) {
-                throw new IOException("Unable to read job config.");
-            }
+            byte[] bytes = jobFile.readFully();
             p.unmarshall(bytes, 0, bytes.length);
             p.setDataPosition(0);
             int version = p.readInt();
             if (version != JOB_FILE_VERSION) {
                 throw new IOException("Bad version of job file: " + version);
             }
-            if (!mJobStore.isEmpty()) {
+            synchronized (mJobStore) {
                 mJobStore.clear();
+                mJobsByVirtualId.clear();
+                mJobsByVuid.clear();
+                int count = p.readInt();
+                for (int i = 0; i < count; i++) {
+                    JobId jobId = new JobId(p);
+                    JobConfig config = new JobConfig(p);
+                    mJobStore.put(jobId, config);
+                    indexJobLocked(jobId, config);
+                    mGlobalJobId = Math.max(mGlobalJobId, config.virtualJobId + 1);
+                }
             }
-            int count = p.readInt();
-            for (int i = 0; i < count; i++) {
-                JobId jobId = new JobId(p);
-                JobConfig config = new JobConfig(p);
-                mJobStore.put(jobId, config);
-                mGlobalJobId = Math.max(mGlobalJobId, config.virtualJobId);
-            }
+        } catch (FileNotFoundException e) {
+            // No job was ever scheduled.
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
             p.recycle();
         }
-
     }
 
     @Override
     public void cancel(int jobId) {
         int vuid = VBinder.getCallingUid();
         synchronized (mJobStore) {
-            boolean changed = false;
-            Iterator<Map.Entry<JobId, JobConfig>> iterator = mJobStore.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<JobId, JobConfig> entry = iterator.next();
-                JobId job = entry.getKey();
-                JobConfig config = entry.getValue();
-                if (job.vuid == vuid && job.clientJobId == jobId) {
-                    changed = true;
-                    mScheduler.cancel(config.virtualJobId);
-                    iterator.remove();
-                    break;
+            for (JobId job : getJobsLocked(vuid)) {
+                if (job.clientJobId == jobId) {
+                    removeJobLocked(job);
                 }
             }
-            if (changed) {
-                saveJobs();
-            }
         }
     }
 
@@ -285,21 +356,8 @@ public class VJobSchedulerService implements IJobService {
     public void cancelAll() {
         int vuid = VBinder.getCallingUid();
         synchronized (mJobStore) {
-            boolean changed = false;
-            Iterator<Map.Entry<JobId, JobConfig>> iterator = mJobStore.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<JobId, JobConfig> entry = iterator.next();
-                JobId job = entry.getKey();
-                if (job.vuid == vuid) {
-                    JobConfig config = entry.getValue();
-                    mScheduler.cancel(config.virtualJobId);
-                    changed = true;
-                    iterator.remove();
-                    break;
-                }
-            }
-            if (changed) {
-                saveJobs();
+            for (JobId job : getJobsLocked(vuid)) {
+                removeJobLocked(job);
             }
         }
     }
@@ -338,12 +396,11 @@ public class VJobSchedulerService implements IJobService {
 
     public Map.Entry<JobId, JobConfig> findJobByVirtualJobId(int virtualJobId) {
         synchronized (mJobStore) {
-            for (Map.Entry<JobId, JobConfig> entry : mJobStore.entrySet()) {
-                if (entry.getValue().virtualJobId == virtualJobId) {
-                    return entry;
-                }
+            JobId jobId = mJobsByVirtualId.get(virtualJobId);
+            if (jobId == null) {
+                return null;
             }
-            return null;
+            return new AbstractMap.SimpleImmutableEntry<>(jobId, mJobStore.get(jobId));
         }
     }
 
@@ -352,10 +409,9 @@ public class VJobSchedulerService implements IJobService {
         int callingUid = VBinder.getCallingUid();
         JobInfo jobInfo = null;
         synchronized (this.mJobStore) {
-            for (Entry key : this.mJobStore.entrySet()) {
-                JobId jobId2 = (JobId) key.getKey();
-                if (jobId2.vuid == callingUid && jobId2.clientJobId == jobId) {
-                    jobInfo = this.mScheduler.getPendingJob(jobId2.clientJobId);
+            for (JobId jobId2 : getJobsLocked(callingUid)) {
+                if (jobId2.clientJobId == jobId) {
+                    jobInfo = this.mScheduler.getPendingJob(mJobStore.get(jobId2).virtualJobId);
                     break;
                 }
             }
@@ -374,17 +430,10 @@ public class VJobSchedulerService implements IJobService {
         int id = job.getId();
         ComponentName service = job.getService();
         JobId jobId = new JobId(callingUid, service.getPackageName(), id);
-        JobConfig jobConfig = (JobConfig) this.mJobStore.get(jobId);
-        if (jobConfig == null) {
-            int i = this.mGlobalJobId;
-            this.mGlobalJobId = i + 1;
-            jobConfig = new JobConfig(i, service.getClassName(), job.getExtras());
-            this.mJobStore.put(jobId, jobConfig);
-        } else {
-            jobConfig.serviceName = service.getClassName();
-            jobConfig.extras = job.getExtras();
+        JobConfig jobConfig;
+        synchronized (this.mJobStore) {
+            jobConfig = putJobLocked(jobId, service.getClassName(), job.getExtras());
         }
-        saveJobs();
         mirror.android.app.job.JobInfo.jobId.set(job, jobConfig.virtualJobId);
         mirror.android.app.job.JobInfo.service.set(job, this.mJobProxyComponent);
         return this.mScheduler.enqueue(job, (JobWorkItem) workItem);
@@ -3,20 +3,37 @@ package com.lody.virtual.server.memory;
 import com.lody.virtual.helper.utils.VLog;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.List;
 
 /**
+ * Search the memory of a process for a value.
+ * <p>
+ * The regions are read in large chunks with positional reads, only the addresses
+ * aligned to the size of the value are compared, and the bytes of a value which
+ * is cut by the end of a read are kept for the next one.
+ * The addresses found are kept in a primitive array.
+ *
  * @author Lody
  */
 public class MemoryScanEngine {
 
+    private static final String TAG = MemoryScanEngine.class.getSimpleName();
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    /**
+     * Stop recording after this many matches, the value is too common to be useful.
+     */
+    private static final int MAX_MATCHES = 1 << 22;
+
     private List<MappedMemoryRegion> regions;
 
     private int pid;
     private ProcessMemory memory;
-    private static final int PAGE = 4096;
-    private List<Match> matches;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder());
+    private long[] matches = new long[1024];
+    private int matchCount;
 
     public MemoryScanEngine(int pid) throws IOException {
         this.pid = pid;
@@ -32,75 +49,130 @@ public class MemoryScanEngine {
         }
     }
 
-    public List<Match> getMatches() {
-        return matches;
+    public int getMatchCount() {
+        return matchCount;
+    }
+
+    /**
+     * @return the addresses found by the last search.
+     */
+    public long[] getMatches() {
+        return Arrays.copyOf(matches, matchCount);
     }
 
     public void search(MemoryValue value) throws IOException {
-        matches = new LinkedList<>();
-        byte[] bytes = new byte[PAGE];
+        matchCount = 0;
         byte[] valueBytes = value.toBytes();
+        int size = valueBytes.length;
+        long pattern = toPattern(valueBytes);
         for (MappedMemoryRegion region : regions) {
-            long start = region.startAddress;
-            long end = region.endAddress;
+            if (!region.isReadable) {
+                continue;
+            }
             try {
-                while (start < end) {
-                    int read = Math.min(bytes.length, (int) (end - start));
-                    read = memory.read(start, bytes, read);
-                    matches.addAll(matchBytes(region, start, bytes, read, valueBytes));
-                    start += PAGE;
-                }
+                searchRegion(region, size, pattern);
             } catch (IOException e) {
-                VLog.e(getClass().getSimpleName(), "Unable to read region : " + region.description);
+                VLog.e(TAG, "Unable to read region : " + region.description);
+            }
+            if (matchCount >= MAX_MATCHES) {
+                VLog.w(TAG, "Too many matches, stop at %d.", matchCount);
+                break;
             }
         }
     }
 
-    public void modify(Match match, MemoryValue value) throws IOException {
-        memory.write(match.address, value.toBytes());
+    private void searchRegion(MappedMemoryRegion region, int size, long pattern) throws IOException {
+        // The address of the first byte in the buffer, always aligned to the size.
+        long bufferAddress = (region.startAddress + size - 1) / size * size;
+        long address = bufferAddress;
+        long end = region.endAddress;
+        buffer.clear();
+        while (address < end) {
+            buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), end - address));
+            int read = memory.read(address, buffer);
+            if (read <= 0) {
+                break;
+            }
+            address += read;
+            buffer.flip();
+            int aligned = buffer.limit() / size * size;
+            matchChunk(bufferAddress, aligned, size, pattern);
+            // Keep the head of a value which continues in the next read.
+            buffer.position(aligned);
+            buffer.compact();
+            bufferAddress += aligned;
+        }
     }
 
-    public void modifyAll(MemoryValue value) throws IOException {
-        for (Match match : matches) {
-            modify(match, value);
+    private void matchChunk(long bufferAddress, int length, int size, long pattern) {
+        ByteBuffer buffer = this.buffer;
+        switch (size) {
+            case 2: {
+                short value = (short) pattern;
+                for (int i = 0; i < length; i += 2) {
+                    if (buffer.getShort(i) == value) {
+                        addMatch(bufferAddress + i);
+                    }
+                }
+                break;
+            }
+            case 4: {
+                int value = (int) pattern;
+                for (int i = 0; i < length; i += 4) {
+                    if (buffer.getInt(i) == value) {
+                        addMatch(bufferAddress + i);
+                    }
+                }
+                break;
+            }
+            case 8: {
+                for (int i = 0; i < length; i += 8) {
+                    if (buffer.getLong(i) == pattern) {
+                        addMatch(bufferAddress + i);
+                    }
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported value size: " + size);
         }
     }
 
-    public class Match {
-        MappedMemoryRegion region;
-        long address;
-        int len;
+    private void addMatch(long address) {
+        if (matchCount >= MAX_MATCHES) {
+            return;
+        }
+        if (matchCount == matches.length) {
+            matches = Arrays.copyOf(matches, Math.min(MAX_MATCHES, matches.length * 2));
+        }
+        matches[matchCount++] = address;
+    }
 
-        public Match(MappedMemoryRegion region, long address, int len) {
-            this.region = region;
-            this.address = address;
-            this.len = len;
+    private static long toPattern(byte[] valueBytes) {
+        ByteBuffer value = ByteBuffer.wrap(valueBytes).order(ByteOrder.nativeOrder());
+        switch (valueBytes.length) {
+            case 2:
+                return value.getShort();
+            case 4:
+                return value.getInt();
+            case 8:
+                return value.getLong();
+            default:
+                throw new IllegalArgumentException("Unsupported value size: " + valueBytes.length);
         }
     }
 
+    public void modify(long address, MemoryValue value) throws IOException {
+        memory.write(address, value.toBytes());
+    }
 
-    private List<Match> matchBytes(MappedMemoryRegion region, long startAddress, byte[] page, int read, byte[] value) {
-        List<Match> matches = new LinkedList<>();
-        int start = 0;
-        int len = value.length;
-        int step = 2;
-        while (start < read) {
-            boolean match = true;
-            for (int i = 0; i < len && i + start < read; i++) {
-                if (page[start + i] != value[i]) {
-                    match = false;
-                    break;
-                }
-            }
-            if (match) {
-                matches.add(new Match(region, startAddress + start, len));
-            }
-            start += step;
+    public void modifyAll(MemoryValue value) throws IOException {
+        byte[] bytes = value.toBytes();
+        for (int i = 0; i < matchCount; i++) {
+            memory.write(matches[i], bytes);
         }
-        return matches;
     }
 
-
     public void close() {
         try {
             memory.close();
@@ -8,7 +8,10 @@ import java.nio.ByteOrder;
  */
 public abstract class MemoryValue {
     
-    private static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
+    /**
+     * The order of the values in the memory of the process.
+     */
+    private static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
 
     public enum ValueType {
         INT2, // short
@@ -30,7 +33,7 @@ public abstract class MemoryValue {
         @Override
         public byte[] toBytes() {
             ByteBuffer buffer = ByteBuffer.allocate(2);
-            return buffer.putShort(val).order(BYTE_ORDER).array();
+            return buffer.order(BYTE_ORDER).putShort(val).array();
         }
     }
 
@@ -2,6 +2,8 @@ package com.lody.virtual.server.memory;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
 
 /**
@@ -11,10 +13,12 @@ public class ProcessMemory {
 
     private int pid;
     private RandomAccessFile memFile;
+    private FileChannel memChannel;
 
     public ProcessMemory(int pid) throws IOException {
         this.pid = pid;
         this.memFile = new RandomAccessFile(String.format(Locale.ENGLISH, "/proc/%d/mem", pid), "rw");
+        this.memChannel = memFile.getChannel();
     }
 
     public void write(long offset, byte[] bytes) throws IOException {
@@ -27,6 +31,14 @@ public class ProcessMemory {
         return memFile.read(bytes, 0, len);
     }
 
+    /**
+     * Read the memory at the address into the remaining space of the buffer,
+     * without moving the file pointer.
+     */
+    public int read(long offset, ByteBuffer buffer) throws IOException {
+        return memChannel.read(buffer, offset);
+    }
+
     public void close() throws IOException {
         memFile.close();
     }
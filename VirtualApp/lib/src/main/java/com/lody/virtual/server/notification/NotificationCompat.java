@@ -11,8 +11,7 @@ import com.lody.virtual.client.core.VirtualCore;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import mirror.com.android.internal.R_Hide;
 
@@ -33,11 +32,9 @@ public abstract class NotificationCompat {
     public static final String EXTRA_BUILDER_APPLICATION_INFO = "android.appInfo";
     static final String TAG = NotificationCompat.class.getSimpleName();
     static final String SYSTEM_UI_PKG = "com.android.systemui";
-    private final List<Integer> sSystemLayoutResIds = new ArrayList<>(10);
     private NotificationFixer mNotificationFixer;
 
     NotificationCompat() {
-        loadSystemLayoutRes();
         mNotificationFixer = new NotificationFixer(this);
     }
 
@@ -49,19 +46,24 @@ public abstract class NotificationCompat {
         }
     }
 
-    private void loadSystemLayoutRes() {
+    private static int[] loadSystemLayoutRes() {
         Field[] fields = R_Hide.layout.TYPE.getFields();
+        int[] ids = new int[fields.length];
+        int count = 0;
         for (Field field : fields) {
             if (Modifier.isStatic(field.getModifiers())
                     && Modifier.isFinal(field.getModifiers())) {
                 try {
-                    int id = field.getInt(null);
-                    sSystemLayoutResIds.add(id);
+                    ids[count] = field.getInt(null);
+                    count++;
                 } catch (Throwable e) {
                     // ignore
                 }
             }
         }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
     }
 
     NotificationFixer getNotificationFixer() {
@@ -70,7 +72,7 @@ public abstract class NotificationCompat {
 
     boolean isSystemLayout(RemoteViews remoteViews) {
         return remoteViews != null
-                && sSystemLayoutResIds.contains(remoteViews.getLayoutId());
+                && Arrays.binarySearch(SystemLayouts.IDS, remoteViews.getLayoutId()) >= 0;
     }
 
     public Context getHostContext() {
@@ -87,4 +89,16 @@ public abstract class NotificationCompat {
     }
 
     public abstract boolean dealNotification(int id, Notification notification, String packageName);
+
+    /**
+     * @return the counters of the RemoteViews rendered for the notifications.
+     */
+    public abstract String dumpStats();
+
+    /**
+     * The sorted ids of the system layouts, loaded once per process on the first lookup.
+     */
+    private static final class SystemLayouts {
+        static final int[] IDS = loadSystemLayoutRes();
+    }
 }
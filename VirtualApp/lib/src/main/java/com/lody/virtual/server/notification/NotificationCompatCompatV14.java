@@ -84,6 +84,11 @@ class NotificationCompatCompatV14 extends NotificationCompat {
         return true;
     }
 
+    @Override
+    public String dumpStats() {
+        return getRemoteViewsFixer().dumpStats();
+    }
+
     Context getAppContext(final String packageName) {
         Context context = null;
         try {
@@ -3,7 +3,10 @@ package com.lody.virtual.server.notification;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.os.Build;
+import android.os.Parcel;
+import android.os.SystemClock;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -18,7 +21,9 @@ import com.lody.virtual.helper.utils.Reflect;
 import com.lody.virtual.helper.utils.VLog;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 /* package */ class RemoteViewsFixer {
@@ -29,7 +34,17 @@ import java.util.HashMap;
     private int notification_side_padding;
     private int notification_padding;
 
-    private final HashMap<String, Bitmap> mImages = new HashMap<>();
+    private static final long MAX_RENDER_BYTES = 8 * 1024 * 1024;
+    /**
+     * The RemoteViews made for a content, by the hash of the content.
+     * Bounded by the bytes of their bitmaps. An evicted bitmap is never reused nor
+     * recycled, the RemoteViews handed out may still hold it.
+     */
+    private final LinkedHashMap<RenderKey, Render> mRenders = new LinkedHashMap<>(16, 0.75f, true);
+    private long mRenderBytes;
+    private int mRenderCount;
+    private int mRenderHits;
+    private long mRenderTime;
     private NotificationCompat mNotificationCompat;
 
     RemoteViewsFixer(NotificationCompat notificationCompat) {
@@ -53,12 +68,12 @@ import java.util.HashMap;
     }
 
     Bitmap createBitmap(View mCache) {
-        if (mCache == null) {
+        if (mCache == null || mCache.getWidth() <= 0 || mCache.getHeight() <= 0) {
             return null;
         }
-        mCache.setDrawingCacheEnabled(true);
-        mCache.buildDrawingCache();
-        return mCache.getDrawingCache();
+        Bitmap bitmap = Bitmap.createBitmap(mCache.getWidth(), mCache.getHeight(), Bitmap.Config.ARGB_8888);
+        mCache.draw(new Canvas(bitmap));
+        return bitmap;
     }
 
     private View apply(Context context, RemoteViews remoteViews) {
@@ -167,6 +182,18 @@ import java.util.HashMap;
         if (contentView == null) {
             return null;
         }
+        RenderKey renderKey = RenderKey.of(contentView, isBig, click);
+        if (renderKey != null) {
+            synchronized (mRenders) {
+                Render render = mRenders.get(renderKey);
+                if (render != null) {
+                    mRenderHits++;
+                    VLog.v(TAG, "reuse render " + key);
+                    return render.remoteViews;
+                }
+            }
+        }
+        long start = SystemClock.uptimeMillis();
         final boolean systemId = false;
         final PendIntentCompat pendIntentCompat = new PendIntentCompat(contentView);
         final int layoutId;
@@ -189,19 +216,8 @@ import java.util.HashMap;
         } else {
             VLog.v(TAG, "bmp w=" + bmp.getWidth() + ",h=" + bmp.getHeight());
         }
-        Bitmap old;
-        synchronized (mImages) {
-            old = mImages.get(key);
-        }
-        if (old != null && !old.isRecycled()) {
-            VLog.v(TAG, "recycle " + key);
-            old.recycle();
-        }
         remoteViews.setImageViewBitmap(R.id.im_main, bmp);
         VLog.v(TAG, "createview " + key);
-        synchronized (mImages) {
-            mImages.put(key, bmp);
-        }
         //notification's click
         if (click) {
             if (layoutId == R.layout.custom_notification) {
@@ -215,9 +231,41 @@ import java.util.HashMap;
                 }
             }
         }
+        synchronized (mRenders) {
+            mRenderCount++;
+            mRenderTime += SystemClock.uptimeMillis() - start;
+            if (renderKey != null && bmp != null) {
+                putRenderLocked(renderKey, new Render(remoteViews, bmp));
+            }
+        }
         return remoteViews;
     }
 
+    private void putRenderLocked(RenderKey key, Render render) {
+        Render old = mRenders.put(key, render);
+        mRenderBytes += getByteCount(render.bitmap);
+        if (old != null) {
+            mRenderBytes -= getByteCount(old.bitmap);
+        }
+        Iterator<Map.Entry<RenderKey, Render>> iterator = mRenders.entrySet().iterator();
+        while (mRenderBytes > MAX_RENDER_BYTES && iterator.hasNext()) {
+            Render eldest = iterator.next().getValue();
+            iterator.remove();
+            mRenderBytes -= getByteCount(eldest.bitmap);
+        }
+    }
+
+    private static long getByteCount(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    String dumpStats() {
+        synchronized (mRenders) {
+            return "renders " + mRenderCount + " in " + mRenderTime + "ms, reused " + mRenderHits
+                    + ", cached " + mRenders.size() + " (" + mRenderBytes + " bytes)";
+        }
+    }
+
     private boolean init = false;
 
     private void init(Context context) {
@@ -270,4 +318,77 @@ import java.util.HashMap;
         return defId == 0 ? 0 : Math.round(context.getResources().getDimension(defId));
     }
 
+    private static final class Render {
+        final RemoteViews remoteViews;
+        final Bitmap bitmap;
+
+        Render(RemoteViews remoteViews, Bitmap bitmap) {
+            this.remoteViews = remoteViews;
+            this.bitmap = bitmap;
+        }
+    }
+
+    /**
+     * The content of a RemoteViews, hashed from its parcel. The layout and every action
+     * are in it, so an unchanged action list gives the same key.
+     */
+    private static final class RenderKey {
+        final long hash;
+        final int hash2;
+        final int size;
+        final boolean isBig;
+        final boolean click;
+
+        private RenderKey(long hash, int hash2, int size, boolean isBig, boolean click) {
+            this.hash = hash;
+            this.hash2 = hash2;
+            this.size = size;
+            this.isBig = isBig;
+            this.click = click;
+        }
+
+        /**
+         * @return the key of the content, null if it can't be written to a parcel.
+         */
+        static RenderKey of(RemoteViews remoteViews, boolean isBig, boolean click) {
+            Parcel p = Parcel.obtain();
+            try {
+                remoteViews.writeToParcel(p, 0);
+                int size = p.dataSize();
+                p.setDataPosition(0);
+                // Read the words back instead of marshall(), which refuses the parcels with binders.
+                long hash = 17;
+                int hash2 = 0x811C9DC5;
+                for (int i = 0; i + 4 <= size; i += 4) {
+                    int word = p.readInt();
+                    hash = 31 * hash + word;
+                    hash2 = (hash2 ^ word) * 0x01000193;
+                }
+                return new RenderKey(hash, hash2, size, isBig, click);
+            } catch (Throwable e) {
+                VLog.w(TAG, "hash RemoteViews", e);
+                return null;
+            } finally {
+                p.recycle();
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RenderKey)) return false;
+            RenderKey that = (RenderKey) o;
+            return hash == that.hash && hash2 == that.hash2 && size == that.size
+                    && isBig == that.isBig && click == that.click;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (hash ^ (hash >>> 32));
+            result = 31 * result + hash2;
+            result = 31 * result + (isBig ? 1 : 0);
+            result = 31 * result + (click ? 1 : 0);
+            return result;
+        }
+    }
 }
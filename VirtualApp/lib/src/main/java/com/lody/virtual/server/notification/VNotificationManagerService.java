@@ -3,22 +3,26 @@ package com.lody.virtual.server.notification;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.text.TextUtils;
+import android.util.SparseArray;
 
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.server.interfaces.INotificationManager;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class VNotificationManagerService implements INotificationManager {
     private static final AtomicReference<VNotificationManagerService> gService = new AtomicReference<>();
     private NotificationManager mNotificationManager;
     static final String TAG = NotificationCompat.class.getSimpleName();
-    private final List<String> mDisables = new ArrayList<>();
-    //VApp's Notifications
-    private final HashMap<String, List<NotificationInfo>> mNotifications = new HashMap<>();
+    /**
+     * The packages whose notifications are disabled, by userId.
+     */
+    private final SparseArray<Set<String>> mDisables = new SparseArray<>();
+    //VApp's Notifications, by package and userId
+    private final HashMap<String, SparseArray<Set<NotificationInfo>>> mNotifications = new HashMap<>();
     private Context mContext;
 
     private VNotificationManagerService(Context context) {
@@ -70,19 +74,26 @@ public class VNotificationManagerService implements INotificationManager {
 
     @Override
     public boolean areNotificationsEnabledForPackage(String packageName, int userId) {
-        return !mDisables.contains(packageName + ":" + userId);
+        synchronized (mDisables) {
+            Set<String> disables = mDisables.get(userId);
+            return disables == null || !disables.contains(packageName);
+        }
     }
 
     @Override
     public void setNotificationsEnabledForPackage(String packageName, boolean enable, int userId) {
-        String key = packageName + ":" + userId;
-        if (enable) {
-            if (mDisables.contains(key)) {
-                mDisables.remove(key);
-            }
-        } else {
-            if (!mDisables.contains(key)) {
-                mDisables.add(key);
+        synchronized (mDisables) {
+            Set<String> disables = mDisables.get(userId);
+            if (enable) {
+                if (disables != null) {
+                    disables.remove(packageName);
+                }
+            } else {
+                if (disables == null) {
+                    disables = new HashSet<>();
+                    mDisables.put(userId, disables);
+                }
+                disables.add(packageName);
             }
         }
         //TODO: save mDisables ?
@@ -90,63 +101,68 @@ public class VNotificationManagerService implements INotificationManager {
 
     @Override
     public void addNotification(int id, String tag, String packageName, int userId) {
-        NotificationInfo notificationInfo = new NotificationInfo(id, tag, packageName, userId);
+        NotificationInfo notificationInfo = new NotificationInfo(id, tag);
         synchronized (mNotifications) {
-            List<NotificationInfo> list = mNotifications.get(packageName);
-            if (list == null) {
-                list = new ArrayList<>();
-                mNotifications.put(packageName, list);
+            SparseArray<Set<NotificationInfo>> users = mNotifications.get(packageName);
+            if (users == null) {
+                users = new SparseArray<>(1);
+                mNotifications.put(packageName, users);
             }
-            if (!list.contains(notificationInfo)) {
-                list.add(notificationInfo);
+            Set<NotificationInfo> infos = users.get(userId);
+            if (infos == null) {
+                infos = new HashSet<>();
+                users.put(userId, infos);
             }
+            infos.add(notificationInfo);
         }
     }
 
     @Override
     public void cancelAllNotification(String packageName, int userId) {
-        List<NotificationInfo> infos = new ArrayList<>();
+        Set<NotificationInfo> infos = null;
         synchronized (mNotifications) {
-            List<NotificationInfo> list = mNotifications.get(packageName);
-            if (list != null) {
-                int count = list.size();
-                for (int i = count - 1; i >= 0; i--) {
-                    NotificationInfo info = list.get(i);
-                    if (info.userId == userId) {
-                        infos.add(info);
-                        list.remove(i);
-                    }
+            SparseArray<Set<NotificationInfo>> users = mNotifications.get(packageName);
+            if (users != null) {
+                infos = users.get(userId);
+                users.remove(userId);
+                if (users.size() == 0) {
+                    mNotifications.remove(packageName);
                 }
             }
         }
+        if (infos == null) {
+            return;
+        }
         for (NotificationInfo info : infos) {
             VLog.d(TAG, "cancel " + info.tag + " " + info.id);
             mNotificationManager.cancel(info.tag, info.id);
         }
     }
 
+    /**
+     * A notification of a package and user, which are the keys of the set holding it.
+     */
     private static class NotificationInfo {
         int id;
         String tag;
-        String packageName;
-        int userId;
 
-        NotificationInfo(int id, String tag, String packageName, int userId) {
+        NotificationInfo(int id, String tag) {
             this.id = id;
             this.tag = tag;
-            this.packageName = packageName;
-            this.userId = userId;
         }
 
         @Override
         public boolean equals(Object obj) {
             if (obj instanceof NotificationInfo) {
                 NotificationInfo that = (NotificationInfo) obj;
-                return that.id == id && TextUtils.equals(that.tag, tag)
-                        && TextUtils.equals(packageName, that.packageName)
-                        && that.userId == userId;
+                return that.id == id && TextUtils.equals(that.tag, tag);
             }
-            return super.equals(obj);
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + (tag != null ? tag.hashCode() : 0);
         }
     }
 
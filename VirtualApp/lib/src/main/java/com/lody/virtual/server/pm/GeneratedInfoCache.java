@@ -0,0 +1,142 @@
+package com.lody.virtual.server.pm;
+
+import android.content.pm.PackageManager;
+
+import com.lody.virtual.helper.compat.ObjectsCompat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the PackageInfo, ApplicationInfo and ComponentInfos generated for
+ * a package, so repeated queries of the same package don't copy its components again.
+ * <p>
+ * An entry is only valid for the {@link PackageSetting#getStateVersion()} it was generated with,
+ * all the entries of a package are dropped when the package is added or removed.
+ * The cached objects are shared by the callers and must never be modified.
+ * Guarded by {@link PackageCacheManager#PACKAGE_CACHE}.
+ *
+ * @author Lody
+ */
+class GeneratedInfoCache {
+
+    static final int TYPE_PACKAGE = 0;
+    static final int TYPE_APPLICATION = 1;
+    static final int TYPE_ACTIVITY = 2;
+    static final int TYPE_RECEIVER = 3;
+    static final int TYPE_SERVICE = 4;
+    static final int TYPE_PROVIDER = 5;
+
+    private static final int MAX_ENTRIES = 512;
+
+    /**
+     * The only flags PackageParserEx looks at when it generates an info,
+     * the other bits are dropped from the key.
+     */
+    @SuppressWarnings("deprecation")
+    private static final int GENERATE_FLAGS = PackageManager.GET_ACTIVITIES
+            | PackageManager.GET_RECEIVERS
+            | PackageManager.GET_SERVICES
+            | PackageManager.GET_PROVIDERS
+            | PackageManager.GET_INSTRUMENTATION
+            | PackageManager.GET_SIGNATURES
+            | PackageManager.GET_META_DATA
+            | PackageManager.GET_GIDS
+            | PackageManager.GET_CONFIGURATIONS
+            | PackageManager.GET_URI_PERMISSION_PATTERNS
+            | PackageManager.GET_UNINSTALLED_PACKAGES;
+
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private int mHits;
+    private int mMisses;
+
+    static int normalizeFlags(int flags) {
+        return flags & GENERATE_FLAGS;
+    }
+
+    Object get(int type, String packageName, String className, int flags, int userId, int stateVersion) {
+        Entry entry = mEntries.get(new Key(type, packageName, className, normalizeFlags(flags), userId));
+        if (entry != null && entry.stateVersion == stateVersion) {
+            mHits++;
+            return entry.info;
+        }
+        mMisses++;
+        return null;
+    }
+
+    void put(int type, String packageName, String className, int flags, int userId, int stateVersion, Object info) {
+        if (info == null) {
+            return;
+        }
+        mEntries.put(new Key(type, packageName, className, normalizeFlags(flags), userId), new Entry(stateVersion, info));
+    }
+
+    void removePackage(String packageName) {
+        Iterator<Key> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().packageName.equals(packageName)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    String dumpStats() {
+        return "size " + mEntries.size() + ", hits " + mHits + ", misses " + mMisses;
+    }
+
+    private static final class Entry {
+        final int stateVersion;
+        final Object info;
+
+        Entry(int stateVersion, Object info) {
+            this.stateVersion = stateVersion;
+            this.info = info;
+        }
+    }
+
+    private static final class Key {
+        final int type;
+        final String packageName;
+        final String className;
+        final int flags;
+        final int userId;
+        private final int hash;
+
+        Key(int type, String packageName, String className, int flags, int userId) {
+            this.type = type;
+            this.packageName = packageName;
+            this.className = className;
+            this.flags = flags;
+            this.userId = userId;
+            int h = type;
+            h = 31 * h + packageName.hashCode();
+            h = 31 * h + (className != null ? className.hashCode() : 0);
+            h = 31 * h + flags;
+            h = 31 * h + userId;
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return type == other.type
+                    && flags == other.flags
+                    && userId == other.userId
+                    && packageName.equals(other.packageName)
+                    && ObjectsCompat.equals(className, other.className);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
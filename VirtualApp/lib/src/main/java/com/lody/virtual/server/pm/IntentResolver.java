@@ -6,22 +6,27 @@ import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.Build;
 
+import com.lody.virtual.helper.compat.ObjectsCompat;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.server.pm.parser.VPackage;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Object> {
 
 	private static final String TAG = "IntentResolver";
+	private static final int MAX_CACHED_QUERIES = 256;
 
 	// Sorts a List of IntentFilter objects into descending priority order.
 	@SuppressWarnings("rawtypes")
@@ -78,6 +83,21 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	 * All of the actions that have been registered and specified a MIME type.
 	 */
 	private HashMap<String, F[]> mTypedActionToFilter = new HashMap<String, F[]>();
+	/**
+	 * The matched filters of the recent queries, only valid for {@link #mGeneration}.
+	 */
+	private final LinkedHashMap<QueryKey, MatchedFilters<F>> mQueryCache = new LinkedHashMap<QueryKey, MatchedFilters<F>>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<QueryKey, MatchedFilters<F>> eldest) {
+			return size() > MAX_CACHED_QUERIES;
+		}
+	};
+	/**
+	 * Bumped when a filter is added or removed.
+	 */
+	private int mGeneration;
+	private int mCacheHits;
+	private int mCacheMisses;
 
 	private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
 		final Set<String> categories = intent.getCategories();
@@ -88,7 +108,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	}
 
 	public void addFilter(F f) {
-
+		invalidateCache();
 		mFilters.add(f);
 		int numS = register_intent_filter(f, f.filter.schemesIterator(), mSchemeToFilter, "      Scheme: ");
 		int numT = register_mime_types(f, "      Type: ");
@@ -200,6 +220,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	}
 
 	public void removeFilter(F f) {
+		invalidateCache();
 		removeFilterInternal(f);
 		mFilters.remove(f);
 	}
@@ -230,23 +251,56 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 		return Collections.unmodifiableSet(mFilters);
 	}
 
-	public List<R> queryIntentFromList(Intent intent, String resolvedType, boolean defaultOnly,
-			ArrayList<F[]> listCut, int userId) {
-		ArrayList<R> resultList = new ArrayList<R>();
-		FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
-		final String scheme = intent.getScheme();
-		int N = listCut.size();
-		for (int i = 0; i < N; ++i) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, listCut.get(i), resultList, userId);
-		}
-		sortResults(resultList);
-		return resultList;
+	private void invalidateCache() {
+		mGeneration++;
+		mQueryCache.clear();
+	}
+
+	public String dumpCacheStats() {
+		int total = mCacheHits + mCacheMisses;
+		return "size=" + mQueryCache.size() + " generation=" + mGeneration
+				+ " hits=" + mCacheHits + " misses=" + mCacheMisses
+				+ " hitRate=" + (total == 0 ? 0 : mCacheHits * 100 / total) + "%";
 	}
 
 	public List<R> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int userId) {
+		QueryKey key = new QueryKey(intent, resolvedType, defaultOnly);
+		MatchedFilters<F> matched = mQueryCache.get(key);
+		if (matched != null && matched.generation == mGeneration) {
+			mCacheHits++;
+		} else {
+			mCacheMisses++;
+			matched = queryMatchedFilters(intent, resolvedType, defaultOnly);
+			mQueryCache.put(key, matched);
+		}
+		return buildResults(matched, userId);
+	}
+
+	/**
+	 * The results depend on the state of the user, so they are always
+	 * generated from the matched filters.
+	 */
+	private List<R> buildResults(MatchedFilters<F> matched, int userId) {
+		ArrayList<R> finalList = new ArrayList<R>(matched.filters.size());
+		for (int i = 0; i < matched.filters.size(); i++) {
+			F filter = matched.filters.get(i);
+			// Do we already have this one?
+			if (!allowFilterResult(filter, finalList)) {
+				continue;
+			}
+			final R oneResult = newResult(filter, matched.matches.get(i), userId);
+			if (oneResult != null) {
+				finalList.add(oneResult);
+			}
+		}
+		sortResults(finalList);
+		return finalList;
+	}
+
+	private MatchedFilters<F> queryMatchedFilters(Intent intent, String resolvedType, boolean defaultOnly) {
 		String scheme = intent.getScheme();
 
-		ArrayList<R> finalList = new ArrayList<R>();
+		MatchedFilters<F> matched = new MatchedFilters<F>(mGeneration);
 		F[] firstTypeCut = null;
 		F[] secondTypeCut = null;
 		F[] thirdTypeCut = null;
@@ -300,19 +354,18 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 
 		FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
 		if (firstTypeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, firstTypeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, firstTypeCut, matched);
 		}
 		if (secondTypeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, secondTypeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, secondTypeCut, matched);
 		}
 		if (thirdTypeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, thirdTypeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, thirdTypeCut, matched);
 		}
 		if (schemeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, schemeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, schemeCut, matched);
 		}
-		sortResults(finalList);
-		return finalList;
+		return matched;
 	}
 
 	/**
@@ -506,7 +559,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	}
 
 	private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
-								  boolean defaultOnly, String resolvedType, String scheme, F[] src, List<R> dest, int userId) {
+								  boolean defaultOnly, String resolvedType, String scheme, F[] src, MatchedFilters<F> dest) {
 		final String action = intent.getAction();
 		final Uri data = intent.getData();
 		final String packageName = intent.getPackage();
@@ -523,18 +576,11 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 			if (packageName != null && !isPackageForFilter(packageName, filter)) {
 				continue;
 			}
-			// Do we already have this one?
-			if (!allowFilterResult(filter, dest)) {
-				continue;
-			}
-
 			match = filter.filter.match(action, resolvedType, scheme, data, categories, TAG);
 			if (match >= 0) {
 				if (!defaultOnly || filter.filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
-					final R oneResult = newResult(filter, match, userId);
-					if (oneResult != null) {
-						dest.add(oneResult);
-					}
+					dest.filters.add(filter);
+					dest.matches.add(match);
 				} else {
 					hasNonDefaults = true;
 				}
@@ -542,14 +588,67 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 		}
 
 		if (hasNonDefaults) {
-			if (dest.size() == 0) {
+			if (dest.filters.size() == 0) {
 				VLog.w(TAG, "resolveIntent failed: found match, but none with CATEGORY_DEFAULT");
-			} else if (dest.size() > 1) {
+			} else if (dest.filters.size() > 1) {
 				VLog.w(TAG, "resolveIntent: multiple matches, only some with CATEGORY_DEFAULT");
 			}
 		}
 	}
 
+	private static final class MatchedFilters<F> {
+		final int generation;
+		final ArrayList<F> filters = new ArrayList<F>();
+		final ArrayList<Integer> matches = new ArrayList<Integer>();
+
+		MatchedFilters(int generation) {
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Everything of an intent which affects the matched filters.
+	 */
+	private static final class QueryKey {
+		final String action;
+		final String type;
+		final String data;
+		final Set<String> categories;
+		final String packageName;
+		final boolean defaultOnly;
+		final int hash;
+
+		QueryKey(Intent intent, String resolvedType, boolean defaultOnly) {
+			this.action = intent.getAction();
+			this.type = resolvedType;
+			// The path and the authority are also matched by the filters.
+			this.data = intent.getData() != null ? intent.getData().toString() : null;
+			this.categories = intent.getCategories() != null ? new HashSet<String>(intent.getCategories()) : null;
+			this.packageName = intent.getPackage();
+			this.defaultOnly = defaultOnly;
+			this.hash = Arrays.hashCode(new Object[]{action, type, data, categories, packageName, defaultOnly});
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof QueryKey)) return false;
+			QueryKey that = (QueryKey) o;
+			return hash == that.hash
+					&& defaultOnly == that.defaultOnly
+					&& ObjectsCompat.equals(action, that.action)
+					&& ObjectsCompat.equals(type, that.type)
+					&& ObjectsCompat.equals(data, that.data)
+					&& ObjectsCompat.equals(categories, that.categories)
+					&& ObjectsCompat.equals(packageName, that.packageName);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
 	private class IteratorWrapper implements Iterator<F> {
 		private Iterator<F> mI;
 		private F mCur;
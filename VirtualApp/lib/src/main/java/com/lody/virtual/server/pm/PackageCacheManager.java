@@ -21,9 +21,12 @@ public class PackageCacheManager {
     public static void put(VPackage pkg, PackageSetting ps) {
         synchronized (PackageCacheManager.class) {
             PackageParserEx.initApplicationInfoBase(ps, pkg);
-            PACKAGE_CACHE.put(pkg.packageName, pkg);
-            pkg.mExtras = ps;
-            VPackageManagerService.get().analyzePackageLocked(pkg);
+            // The resolvers (and their query caches) are read with PACKAGE_CACHE held.
+            synchronized (PACKAGE_CACHE) {
+                PACKAGE_CACHE.put(pkg.packageName, pkg);
+                pkg.mExtras = ps;
+                VPackageManagerService.get().analyzePackageLocked(pkg);
+            }
         }
     }
 
@@ -45,8 +48,10 @@ public class PackageCacheManager {
 
     public static VPackage remove(String packageName) {
         synchronized (PackageCacheManager.class) {
-            VPackageManagerService.get().deletePackageLocked(packageName);
-            return PACKAGE_CACHE.remove(packageName);
+            synchronized (PACKAGE_CACHE) {
+                VPackageManagerService.get().deletePackageLocked(packageName);
+                return PACKAGE_CACHE.remove(packageName);
+            }
         }
     }
 }
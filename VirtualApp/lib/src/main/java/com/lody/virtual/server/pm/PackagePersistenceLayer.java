@@ -15,9 +15,14 @@ import java.util.Arrays;
 class PackagePersistenceLayer extends PersistenceLayer {
 
     private static final char[] MAGIC = {'v', 'p', 'k', 'g'};
-    private static final int CURRENT_VERSION = 3;
+    /**
+     * The first version which keeps the user states of a package as bitsets.
+     */
+    static final int VERSION_USER_BITS = 4;
+    private static final int CURRENT_VERSION = VERSION_USER_BITS;
 
     private VAppManagerService mService;
+    private int mFileVersion = CURRENT_VERSION;
 
     PackagePersistenceLayer(VAppManagerService service) {
         super(VEnvironment.getPackageListFile());
@@ -56,14 +61,22 @@ class PackagePersistenceLayer extends PersistenceLayer {
     public void readPersistenceData(Parcel p) {
         int count = p.readInt();
         while (count-- > 0) {
-            PackageSetting setting = new PackageSetting(p);
+            PackageSetting setting = new PackageSetting(p, mFileVersion);
             mService.loadPackage(setting);
         }
+        if (mFileVersion != CURRENT_VERSION) {
+            // Write the migrated settings back in the current format.
+            mFileVersion = CURRENT_VERSION;
+            save();
+        }
     }
 
     @Override
     public boolean onVersionConflict(int fileVersion, int currentVersion) {
-        // I am so lazy to process it...
+        if (fileVersion == 3) {
+            mFileVersion = fileVersion;
+            return true;
+        }
         return false;
     }
 
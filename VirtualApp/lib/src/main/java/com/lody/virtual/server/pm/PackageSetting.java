@@ -6,6 +6,8 @@ import android.util.SparseArray;
 
 import com.lody.virtual.remote.InstalledAppInfo;
 
+import java.util.Arrays;
+
 /**
  * @author Lody
  */
@@ -23,7 +25,26 @@ public class PackageSetting implements Parcelable {
             return new PackageSetting[size];
         }
     };
-    private static final PackageUserState DEFAULT_USER_STATE = new PackageUserState();
+    private static final long[] EMPTY_BITS = new long[0];
+    private static final int STATE_INSTALLED = 0x01;
+    private static final int STATE_HIDDEN = 0x02;
+    private static final int STATE_STOPPED = 0x04;
+    /**
+     * One shared state for every combination of the flags, indexed by the STATE_* bits.
+     * They are returned by {@link #readUserState(int)} and must never be modified.
+     */
+    private static final PackageUserState[] USER_STATES = new PackageUserState[8];
+
+    static {
+        for (int i = 0; i < USER_STATES.length; i++) {
+            PackageUserState state = new PackageUserState();
+            state.installed = (i & STATE_INSTALLED) != 0;
+            state.hidden = (i & STATE_HIDDEN) != 0;
+            state.launched = (i & STATE_STOPPED) == 0;
+            USER_STATES[i] = state;
+        }
+    }
+
     public String packageName;
     public String apkPath;
     public String libPath;
@@ -33,52 +54,114 @@ public class PackageSetting implements Parcelable {
     public int appId;
     public long firstInstallTime;
     public long lastUpdateTime;
-    private SparseArray<PackageUserState> userState = new SparseArray<>();
+    /**
+     * The per-user flags, the bit of a user is {@code 1L << userId} of the word {@code userId / 64}.
+     * A user without any bit set has the default state: not installed, not hidden and launched.
+     */
+    private long[] installedUsers = EMPTY_BITS;
+    private long[] hiddenUsers = EMPTY_BITS;
+    private long[] stoppedUsers = EMPTY_BITS;
+    /**
+     * Bumped after every change of the user states, the infos generated
+     * with an older version are stale.
+     */
+    private volatile int stateVersion;
 
     public PackageSetting() {
     }
 
     protected PackageSetting(Parcel in) {
+        this(in, PackagePersistenceLayer.VERSION_USER_BITS);
+    }
+
+    /**
+     * @param version the version of the package list the setting is read from,
+     *                the files older than {@link PackagePersistenceLayer#VERSION_USER_BITS}
+     *                keep a PackageUserState for each user.
+     */
+    PackageSetting(Parcel in, int version) {
         this.packageName = in.readString();
         this.apkPath = in.readString();
         this.libPath = in.readString();
         this.dependSystem = in.readByte() != 0;
         this.appId = in.readInt();
-        //noinspection unchecked
-        this.userState = in.readSparseArray(PackageUserState.class.getClassLoader());
-        this.skipDexOpt = in.readByte() != 0;
+        if (version < PackagePersistenceLayer.VERSION_USER_BITS) {
+            //noinspection unchecked
+            SparseArray<PackageUserState> userState = in.readSparseArray(PackageUserState.class.getClassLoader());
+            for (int i = 0; i < userState.size(); i++) {
+                PackageUserState state = userState.valueAt(i);
+                int userId = userState.keyAt(i);
+                installedUsers = setBit(installedUsers, userId, state.installed);
+                hiddenUsers = setBit(hiddenUsers, userId, state.hidden);
+                stoppedUsers = setBit(stoppedUsers, userId, !state.launched);
+            }
+            this.skipDexOpt = in.readByte() != 0;
+        } else {
+            this.skipDexOpt = in.readByte() != 0;
+            this.installedUsers = in.createLongArray();
+            this.hiddenUsers = in.createLongArray();
+            this.stoppedUsers = in.createLongArray();
+        }
     }
 
     public InstalledAppInfo getAppInfo() {
         return new InstalledAppInfo(packageName, apkPath, libPath, dependSystem, skipDexOpt, appId);
     }
 
-    PackageUserState modifyUserState(int userId) {
-        PackageUserState state = userState.get(userId);
-        if (state == null) {
-            state = new PackageUserState();
-            userState.put(userId, state);
+    private static boolean getBit(long[] bits, int userId) {
+        int index = userId >> 6;
+        return userId >= 0 && index < bits.length && (bits[index] & (1L << userId)) != 0;
+    }
+
+    private static long[] setBit(long[] bits, int userId, boolean value) {
+        if (userId < 0) {
+            return bits;
+        }
+        int index = userId >> 6;
+        if (index >= bits.length) {
+            if (!value) {
+                return bits;
+            }
+            bits = Arrays.copyOf(bits, index + 1);
         }
-        return state;
+        if (value) {
+            bits[index] |= 1L << userId;
+        } else {
+            bits[index] &= ~(1L << userId);
+        }
+        return bits;
     }
 
     void setUserState(int userId, boolean launched, boolean hidden, boolean installed) {
-        PackageUserState state = modifyUserState(userId);
-        state.launched = launched;
-        state.hidden = hidden;
-        state.installed = installed;
+        stoppedUsers = setBit(stoppedUsers, userId, !launched);
+        hiddenUsers = setBit(hiddenUsers, userId, hidden);
+        installedUsers = setBit(installedUsers, userId, installed);
+        stateVersion++;
     }
 
+    int getStateVersion() {
+        return stateVersion;
+    }
+
+    /**
+     * @return a shared state which must never be modified, use the setters instead.
+     */
     PackageUserState readUserState(int userId) {
-        PackageUserState state = userState.get(userId);
-        if (state != null) {
-            return state;
+        int index = 0;
+        if (getBit(installedUsers, userId)) {
+            index |= STATE_INSTALLED;
+        }
+        if (getBit(hiddenUsers, userId)) {
+            index |= STATE_HIDDEN;
+        }
+        if (getBit(stoppedUsers, userId)) {
+            index |= STATE_STOPPED;
         }
-        return DEFAULT_USER_STATE;
+        return USER_STATES[index];
     }
 
     void removeUser(int userId) {
-        userState.delete(userId);
+        setUserState(userId, true, false, false);
     }
 
     @Override
@@ -93,32 +176,36 @@ public class PackageSetting implements Parcelable {
         dest.writeString(this.libPath);
         dest.writeByte(this.dependSystem ? (byte) 1 : (byte) 0);
         dest.writeInt(this.appId);
-        //noinspection unchecked
-        dest.writeSparseArray((SparseArray) this.userState);
         dest.writeByte(this.skipDexOpt ? (byte) 1 : (byte) 0);
+        dest.writeLongArray(this.installedUsers);
+        dest.writeLongArray(this.hiddenUsers);
+        dest.writeLongArray(this.stoppedUsers);
     }
 
     public boolean isLaunched(int userId) {
-        return readUserState(userId).launched;
+        return !getBit(stoppedUsers, userId);
     }
 
     public boolean isHidden(int userId) {
-        return readUserState(userId).hidden;
+        return getBit(hiddenUsers, userId);
     }
 
     public boolean isInstalled(int userId) {
-        return readUserState(userId).installed;
+        return getBit(installedUsers, userId);
     }
 
     public void setLaunched(int userId, boolean launched) {
-        modifyUserState(userId).launched = launched;
+        stoppedUsers = setBit(stoppedUsers, userId, !launched);
+        stateVersion++;
     }
 
     public void setHidden(int userId, boolean hidden) {
-        modifyUserState(userId).hidden = hidden;
+        hiddenUsers = setBit(hiddenUsers, userId, hidden);
+        stateVersion++;
     }
 
     public void setInstalled(int userId, boolean installed) {
-        modifyUserState(userId).installed = installed;
+        installedUsers = setBit(installedUsers, userId, installed);
+        stateVersion++;
     }
 }
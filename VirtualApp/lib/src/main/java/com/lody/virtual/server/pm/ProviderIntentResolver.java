@@ -14,7 +14,6 @@ import com.lody.virtual.server.pm.parser.PackageParserEx;
 import com.lody.virtual.server.pm.parser.VPackage;
 
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -35,29 +34,6 @@ final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderInten
         return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, userId);
     }
 
-    public List<ResolveInfo> queryIntentForPackage(Intent intent, String resolvedType, int flags,
-                                                   ArrayList<VPackage.ProviderComponent> packageProviders, int userId) {
-        if (packageProviders == null) {
-            return null;
-        }
-        mFlags = flags;
-        final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
-        final int N = packageProviders.size();
-        ArrayList<VPackage.ProviderIntentInfo[]> listCut = new ArrayList<>(N);
-
-        ArrayList<VPackage.ProviderIntentInfo> intentFilters;
-        for (int i = 0; i < N; ++i) {
-            intentFilters = packageProviders.get(i).intents;
-            if (intentFilters != null && intentFilters.size() > 0) {
-                VPackage.ProviderIntentInfo[] array = new VPackage.ProviderIntentInfo[intentFilters
-                        .size()];
-                intentFilters.toArray(array);
-                listCut.add(array);
-            }
-        }
-        return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, userId);
-    }
-
     public final void addProvider(VPackage.ProviderComponent p) {
         if (mProviders.containsKey(p.getComponentName())) {
             VLog.w(TAG, "Provider " + p.getComponentName() + " already defined; ignoring");
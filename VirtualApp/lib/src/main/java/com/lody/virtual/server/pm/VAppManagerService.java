@@ -1,6 +1,7 @@
 package com.lody.virtual.server.pm;
 
 import android.content.Intent;
+import android.content.pm.Signature;
 import android.net.Uri;
 import android.os.Build;
 import android.os.IBinder;
@@ -11,6 +12,7 @@ import com.lody.virtual.client.core.InstallStrategy;
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.env.VirtualRuntime;
 import com.lody.virtual.helper.ArtDexOptimizer;
+import com.lody.virtual.helper.ResourcesCache;
 import com.lody.virtual.helper.collection.IntArray;
 import com.lody.virtual.helper.compat.NativeLibraryHelperCompat;
 import com.lody.virtual.helper.utils.ArrayUtils;
@@ -21,6 +23,7 @@ import com.lody.virtual.os.VUserHandle;
 import com.lody.virtual.remote.InstallResult;
 import com.lody.virtual.remote.InstalledAppInfo;
 import com.lody.virtual.server.accounts.VAccountManagerService;
+import com.lody.virtual.server.am.AttributeCache;
 import com.lody.virtual.server.am.BroadcastSystem;
 import com.lody.virtual.server.am.UidSystem;
 import com.lody.virtual.server.am.VActivityManagerService;
@@ -31,11 +34,16 @@ import com.lody.virtual.server.pm.parser.PackageParserEx;
 import com.lody.virtual.server.pm.parser.VPackage;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 
 import dalvik.system.DexFile;
@@ -53,6 +61,16 @@ public class VAppManagerService implements IAppManager {
     private boolean mBooting;
     private RemoteCallbackList<IPackageObserver> mRemoteCallbackList = new RemoteCallbackList<>();
     private IAppRequestListener mAppRequestListener;
+    /**
+     * The fingerprint of the APK each package was installed from, read from its
+     * fingerprint file when the package is loaded. Guarded by itself.
+     */
+    private final Map<String, String> mFingerprints = new HashMap<>();
+    /**
+     * fingerprint -> package name, guarded by {@link #mFingerprints}.
+     */
+    private final Map<String, String> mPackagesByFingerprint = new HashMap<>();
+    private final Executor mSignatureVerifier = Executors.newSingleThreadExecutor();
 
     public static VAppManagerService get() {
         return sService.get();
@@ -115,6 +133,11 @@ public class VAppManagerService implements IAppManager {
         }
         chmodPackageDictionary(cacheFile);
         PackageCacheManager.put(pkg, ps);
+        putFingerprint(ps.packageName, readFingerprint(ps.packageName));
+        if (!VEnvironment.getSignatureFile(ps.packageName).exists()) {
+            // The verification of the last install never finished.
+            verifySignaturesLater(pkg, new File(ps.apkPath), null);
+        }
         BroadcastSystem.get().startApp(pkg);
         return true;
     }
@@ -152,14 +175,28 @@ public class VAppManagerService implements IAppManager {
         if (!packageFile.exists() || !packageFile.isFile()) {
             return InstallResult.makeFailure("Package File is not exist.");
         }
-        VPackage pkg = null;
-        try {
-            pkg = PackageParserEx.parsePackage(packageFile);
-        } catch (Throwable e) {
-            e.printStackTrace();
+        String fingerprint = PackageParserEx.computeFingerprint(packageFile);
+        // The same APK is installed again, skip the parsing and the verification of the signatures.
+        VPackage pkg = findPackageByFingerprint(fingerprint);
+        if (pkg != null && pkg.mSignatures == null) {
+            PackageParserEx.readSignature(pkg);
+            if (pkg.mSignatures == null) {
+                // Never verified, verify it again.
+                pkg = null;
+            }
         }
-        if (pkg == null || pkg.packageName == null) {
-            return InstallResult.makeFailure("Unable to parse the package.");
+        boolean verifyLater = false;
+        if (pkg == null) {
+            verifyLater = (flags & InstallStrategy.VERIFY_SIGNATURES_LATER) != 0;
+            try {
+                pkg = PackageParserEx.parsePackage(packageFile, !verifyLater);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+            if (pkg == null || pkg.packageName == null) {
+                return InstallResult.makeFailure("Unable to parse the package.");
+            }
+            verifyLater &= pkg.mSignatures == null;
         }
         InstallResult res = new InstallResult();
         res.packageName = pkg.packageName;
@@ -235,9 +272,20 @@ public class VAppManagerService implements IAppManager {
                 ps.setUserState(userId, false/*launched*/, false/*hidden*/, installed);
             }
         }
+        if (verifyLater) {
+            // Never serve the signatures of the previous install.
+            VEnvironment.getSignatureFile(pkg.packageName).delete();
+        }
         PackageParserEx.savePackageCache(pkg);
         PackageCacheManager.put(pkg, ps);
         mPersistenceLayer.save();
+        if (verifyLater) {
+            // The fingerprint is only saved once the signatures are verified.
+            saveFingerprint(pkg.packageName, null);
+            verifySignaturesLater(pkg, packageFile, fingerprint);
+        } else {
+            saveFingerprint(pkg.packageName, fingerprint);
+        }
         if (!dependSystem) {
             boolean runDexOpt = false;
             if (VirtualRuntime.isArt()) {
@@ -297,6 +345,102 @@ public class VAppManagerService implements IAppManager {
         }
     }
 
+    private VPackage findPackageByFingerprint(String fingerprint) {
+        if (fingerprint == null) {
+            return null;
+        }
+        String packageName;
+        synchronized (mFingerprints) {
+            packageName = mPackagesByFingerprint.get(fingerprint);
+        }
+        return packageName != null ? PackageCacheManager.get(packageName) : null;
+    }
+
+    private String readFingerprint(String packageName) {
+        File fingerprintFile = VEnvironment.getFingerprintFile(packageName);
+        if (!fingerprintFile.exists()) {
+            return null;
+        }
+        try {
+            FileInputStream is = new FileInputStream(fingerprintFile);
+            try {
+                return new String(FileUtils.toByteArray(is));
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param fingerprint null if the package is unknown or removed.
+     */
+    private void putFingerprint(String packageName, String fingerprint) {
+        synchronized (mFingerprints) {
+            String old = fingerprint != null
+                    ? mFingerprints.put(packageName, fingerprint) : mFingerprints.remove(packageName);
+            if (old != null && packageName.equals(mPackagesByFingerprint.get(old))) {
+                mPackagesByFingerprint.remove(old);
+            }
+            if (fingerprint != null) {
+                mPackagesByFingerprint.put(fingerprint, packageName);
+            }
+        }
+    }
+
+    private void saveFingerprint(String packageName, String fingerprint) {
+        File fingerprintFile = VEnvironment.getFingerprintFile(packageName);
+        if (fingerprint == null) {
+            fingerprintFile.delete();
+            putFingerprint(packageName, null);
+            return;
+        }
+        try {
+            FileUtils.writeToFile(fingerprint.getBytes(), fingerprintFile);
+            putFingerprint(packageName, fingerprint);
+        } catch (IOException e) {
+            e.printStackTrace();
+            putFingerprint(packageName, null);
+        }
+    }
+
+    /**
+     * @param fingerprint the fingerprint of the package file, null to compute it.
+     */
+    private void verifySignaturesLater(final VPackage pkg, final File packageFile, final String fingerprint) {
+        mSignatureVerifier.execute(new Runnable() {
+            @Override
+            public void run() {
+                Signature[] signatures = null;
+                try {
+                    signatures = PackageParserEx.collectCertificates(packageFile);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+                synchronized (PackageCacheManager.PACKAGE_CACHE) {
+                    if (PackageCacheManager.PACKAGE_CACHE.get(pkg.packageName) != pkg) {
+                        // Installed again or uninstalled in the meantime.
+                        return;
+                    }
+                    if (signatures != null) {
+                        pkg.mSignatures = signatures;
+                        VPackageManagerService.get().onSignaturesVerifiedLocked(pkg.packageName);
+                    }
+                }
+                if (signatures != null) {
+                    PackageParserEx.saveSignatures(pkg);
+                    saveFingerprint(pkg.packageName, fingerprint != null
+                            ? fingerprint : PackageParserEx.computeFingerprint(packageFile));
+                } else {
+                    VLog.w(TAG, "Unable to verify the signatures of %s, uninstall it.", pkg.packageName);
+                    uninstallPackage(pkg.packageName);
+                }
+            }
+        });
+    }
+
     private boolean canUpdate(VPackage existOne, VPackage newOne, int flags) {
         if ((flags & InstallStrategy.COMPARE_VERSION) != 0) {
             if (existOne.mVersionCode < newOne.mVersionCode) {
@@ -361,6 +505,7 @@ public class VAppManagerService implements IAppManager {
                 FileUtils.deleteDir(VEnvironment.getDataUserPackageDirectory(id, packageName));
             }
             PackageCacheManager.remove(packageName);
+            putFingerprint(packageName, null);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -450,7 +595,11 @@ public class VAppManagerService implements IAppManager {
             }
         }
         mRemoteCallbackList.finishBroadcast();
-        VAccountManagerService.get().refreshAuthenticatorCache(null);
+        if (userId == -1) {
+            ResourcesCache.get().remove(setting.apkPath);
+            AttributeCache.instance().removePackage(pkg);
+        }
+        VAccountManagerService.get().refreshAuthenticatorCache(pkg);
     }
 
     private void notifyAppUninstalled(PackageSetting setting, int userId) {
@@ -470,7 +619,11 @@ public class VAppManagerService implements IAppManager {
             }
         }
         mRemoteCallbackList.finishBroadcast();
-        VAccountManagerService.get().refreshAuthenticatorCache(null);
+        if (userId == -1) {
+            ResourcesCache.get().remove(setting.apkPath);
+            AttributeCache.instance().removePackage(pkg);
+        }
+        VAccountManagerService.get().refreshAuthenticatorCache(pkg);
     }
 
 
@@ -22,6 +22,7 @@ import com.lody.virtual.client.fixer.ComponentFixer;
 import com.lody.virtual.client.stub.VASettings;
 import com.lody.virtual.helper.compat.ObjectsCompat;
 import com.lody.virtual.os.VUserHandle;
+import com.lody.virtual.remote.PackageFilter;
 import com.lody.virtual.remote.VParceledListSlice;
 import com.lody.virtual.server.IPackageInstaller;
 import com.lody.virtual.server.interfaces.IPackageManager;
@@ -29,10 +30,10 @@ import com.lody.virtual.server.pm.installer.VPackageInstallerService;
 import com.lody.virtual.server.pm.parser.PackageParserEx;
 import com.lody.virtual.server.pm.parser.VPackage;
 
-import java.io.File;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -94,6 +95,7 @@ public class VPackageManagerService implements IPackageManager {
     private final HashMap<String, VPackage.ProviderComponent> mProvidersByAuthority = new HashMap<>();
 
     private final Map<String, VPackage> mPackages = PackageCacheManager.PACKAGE_CACHE;
+    private final GeneratedInfoCache mInfoCache = new GeneratedInfoCache();
 
 
     public VPackageManagerService() {
@@ -113,7 +115,25 @@ public class VPackageManagerService implements IPackageManager {
     }
 
 
+    /**
+     * Debug only, the hit rate of the intent query caches.
+     */
+    public String dumpResolveCacheStats() {
+        synchronized (mPackages) {
+            StringBuilder sb = new StringBuilder("Intent query cache:\n");
+            sb.append("  activities ").append(mActivities.dumpCacheStats()).append('\n');
+            sb.append("  services ").append(mServices.dumpCacheStats()).append('\n');
+            sb.append("  receivers ").append(mReceivers.dumpCacheStats()).append('\n');
+            if (mProviders != null) {
+                sb.append("  providers ").append(mProviders.dumpCacheStats()).append('\n');
+            }
+            sb.append("Generated info cache: ").append(mInfoCache.dumpStats()).append('\n');
+            return sb.toString();
+        }
+    }
+
     void analyzePackageLocked(VPackage pkg) {
+        mInfoCache.removePackage(pkg.packageName);
         int N = pkg.activities.size();
         for (int i = 0; i < N; i++) {
             VPackage.ActivityComponent a = pkg.activities.get(i);
@@ -169,7 +189,15 @@ public class VPackageManagerService implements IPackageManager {
         }
     }
 
+    /**
+     * Drop the infos generated before the signatures of the package were verified.
+     */
+    void onSignaturesVerifiedLocked(String packageName) {
+        mInfoCache.removePackage(packageName);
+    }
+
     void deletePackageLocked(String packageName) {
+        mInfoCache.removePackage(packageName);
         VPackage pkg = mPackages.get(packageName);
         if (pkg == null) {
             return;
@@ -250,12 +278,62 @@ public class VPackageManagerService implements IPackageManager {
 
     private PackageInfo generatePackageInfo(VPackage p, PackageSetting ps, int flags, int userId) {
         flags = updateFlagsNought(flags);
-        PackageInfo packageInfo = PackageParserEx.generatePackageInfo(p, flags,
-                ps.firstInstallTime, ps.lastUpdateTime, ps.readUserState(userId), userId);
-        if (packageInfo != null) {
-            return packageInfo;
+        int stateVersion = ps.getStateVersion();
+        PackageInfo packageInfo = (PackageInfo) mInfoCache.get(GeneratedInfoCache.TYPE_PACKAGE,
+                p.packageName, null, flags, userId, stateVersion);
+        if (packageInfo == null) {
+            packageInfo = PackageParserEx.generatePackageInfo(p, flags,
+                    ps.firstInstallTime, ps.lastUpdateTime, ps.readUserState(userId), userId);
+            mInfoCache.put(GeneratedInfoCache.TYPE_PACKAGE, p.packageName, null, flags, userId, stateVersion, packageInfo);
+        }
+        return packageInfo;
+    }
+
+    private ApplicationInfo generateApplicationInfo(VPackage p, PackageSetting ps, int flags, int userId) {
+        int stateVersion = ps.getStateVersion();
+        ApplicationInfo applicationInfo = (ApplicationInfo) mInfoCache.get(GeneratedInfoCache.TYPE_APPLICATION,
+                p.packageName, null, flags, userId, stateVersion);
+        if (applicationInfo == null) {
+            applicationInfo = PackageParserEx.generateApplicationInfo(p, flags, ps.readUserState(userId), userId);
+            mInfoCache.put(GeneratedInfoCache.TYPE_APPLICATION, p.packageName, null, flags, userId, stateVersion, applicationInfo);
         }
-        return null;
+        return applicationInfo;
+    }
+
+    private ActivityInfo generateActivityInfo(int type, VPackage.ActivityComponent a, PackageSetting ps, int flags, int userId) {
+        int stateVersion = ps.getStateVersion();
+        ActivityInfo activityInfo = (ActivityInfo) mInfoCache.get(type,
+                ps.packageName, a.className, flags, userId, stateVersion);
+        if (activityInfo == null) {
+            activityInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
+            ComponentFixer.fixComponentInfo(ps, activityInfo, userId);
+            mInfoCache.put(type, ps.packageName, a.className, flags, userId, stateVersion, activityInfo);
+        }
+        return activityInfo;
+    }
+
+    private ServiceInfo generateServiceInfo(VPackage.ServiceComponent s, PackageSetting ps, int flags, int userId) {
+        int stateVersion = ps.getStateVersion();
+        ServiceInfo serviceInfo = (ServiceInfo) mInfoCache.get(GeneratedInfoCache.TYPE_SERVICE,
+                ps.packageName, s.className, flags, userId, stateVersion);
+        if (serviceInfo == null) {
+            serviceInfo = PackageParserEx.generateServiceInfo(s, flags, ps.readUserState(userId), userId);
+            ComponentFixer.fixComponentInfo(ps, serviceInfo, userId);
+            mInfoCache.put(GeneratedInfoCache.TYPE_SERVICE, ps.packageName, s.className, flags, userId, stateVersion, serviceInfo);
+        }
+        return serviceInfo;
+    }
+
+    private ProviderInfo generateProviderInfo(VPackage.ProviderComponent provider, PackageSetting ps, int flags, int userId) {
+        int stateVersion = ps.getStateVersion();
+        ProviderInfo providerInfo = (ProviderInfo) mInfoCache.get(GeneratedInfoCache.TYPE_PROVIDER,
+                ps.packageName, provider.className, flags, userId, stateVersion);
+        if (providerInfo == null) {
+            providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
+            ComponentFixer.fixComponentInfo(ps, providerInfo, userId);
+            mInfoCache.put(GeneratedInfoCache.TYPE_PROVIDER, ps.packageName, provider.className, flags, userId, stateVersion, providerInfo);
+        }
+        return providerInfo;
     }
 
     private int updateFlagsNought(int flags) {
@@ -290,9 +368,7 @@ public class VPackageManagerService implements IPackageManager {
                 PackageSetting ps = (PackageSetting) p.mExtras;
                 VPackage.ActivityComponent a = mActivities.mActivities.get(component);
                 if (a != null) {
-                    ActivityInfo activityInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(ps, activityInfo, userId);
-                    return activityInfo;
+                    return generateActivityInfo(GeneratedInfoCache.TYPE_ACTIVITY, a, ps, flags, userId);
                 }
             }
         }
@@ -326,9 +402,7 @@ public class VPackageManagerService implements IPackageManager {
                 PackageSetting ps = (PackageSetting) p.mExtras;
                 VPackage.ActivityComponent a = mReceivers.mActivities.get(component);
                 if (a != null) {
-                    ActivityInfo receiverInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(ps, receiverInfo, userId);
-                    return receiverInfo;
+                    return generateActivityInfo(GeneratedInfoCache.TYPE_RECEIVER, a, ps, flags, userId);
                 }
             }
         }
@@ -345,9 +419,7 @@ public class VPackageManagerService implements IPackageManager {
                 PackageSetting ps = (PackageSetting) p.mExtras;
                 VPackage.ServiceComponent s = mServices.mServices.get(component);
                 if (s != null) {
-                    ServiceInfo serviceInfo = PackageParserEx.generateServiceInfo(s, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(ps, serviceInfo, userId);
-                    return serviceInfo;
+                    return generateServiceInfo(s, ps, flags, userId);
                 }
             }
         }
@@ -364,9 +436,7 @@ public class VPackageManagerService implements IPackageManager {
                 PackageSetting ps = (PackageSetting) p.mExtras;
                 VPackage.ProviderComponent provider = mProvidersByComponent.get(component);
                 if (provider != null) {
-                    ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(ps, providerInfo, userId);
-                    return providerInfo;
+                    return generateProviderInfo(provider, ps, flags, userId);
                 }
             }
         }
@@ -460,9 +530,9 @@ public class VPackageManagerService implements IPackageManager {
             if (pkgName == null) {
                 return mActivities.queryIntent(intent, resolvedType, flags, userId);
             }
-            final VPackage pkg = mPackages.get(pkgName);
-            if (pkg != null) {
-                return mActivities.queryIntentForPackage(intent, resolvedType, flags, pkg.activities, userId);
+            if (mPackages.containsKey(pkgName)) {
+                // The cached query also limits the filters to the package.
+                return mActivities.queryIntent(intent, resolvedType, flags, userId);
             }
             return Collections.emptyList();
         }
@@ -498,9 +568,9 @@ public class VPackageManagerService implements IPackageManager {
             if (pkgName == null) {
                 return mReceivers.queryIntent(intent, resolvedType, flags, userId);
             }
-            final VPackage pkg = mPackages.get(pkgName);
-            if (pkg != null) {
-                return mReceivers.queryIntentForPackage(intent, resolvedType, flags, pkg.receivers, userId);
+            if (mPackages.containsKey(pkgName)) {
+                // The cached query also limits the filters to the package.
+                return mReceivers.queryIntent(intent, resolvedType, flags, userId);
             }
             return Collections.emptyList();
         }
@@ -551,9 +621,9 @@ public class VPackageManagerService implements IPackageManager {
             if (pkgName == null) {
                 return mServices.queryIntent(intent, resolvedType, flags, userId);
             }
-            final VPackage pkg = mPackages.get(pkgName);
-            if (pkg != null) {
-                return mServices.queryIntentForPackage(intent, resolvedType, flags, pkg.services, userId);
+            if (mPackages.containsKey(pkgName)) {
+                // The cached query also limits the filters to the package.
+                return mServices.queryIntent(intent, resolvedType, flags, userId);
             }
             return Collections.emptyList();
         }
@@ -589,9 +659,9 @@ public class VPackageManagerService implements IPackageManager {
             if (pkgName == null) {
                 return mProviders.queryIntent(intent, resolvedType, flags, userId);
             }
-            final VPackage pkg = mPackages.get(pkgName);
-            if (pkg != null) {
-                return mProviders.queryIntentForPackage(intent, resolvedType, flags, pkg.providers, userId);
+            if (mPackages.containsKey(pkgName)) {
+                // The cached query also limits the filters to the package.
+                return mProviders.queryIntent(intent, resolvedType, flags, userId);
             }
             return Collections.emptyList();
         }
@@ -620,34 +690,88 @@ public class VPackageManagerService implements IPackageManager {
     }
 
     @Override
-    public VParceledListSlice<PackageInfo> getInstalledPackages(int flags, int userId) {
+    public VParceledListSlice<PackageInfo> getInstalledPackages(int flags, int userId, PackageFilter filter) {
         checkUserId(userId);
-        ArrayList<PackageInfo> pkgList = new ArrayList<>(mPackages.size());
-        synchronized (mPackages) {
-            for (VPackage p : mPackages.values()) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                PackageInfo info = generatePackageInfo(p, ps, flags, userId);
-                if (info != null) {
-                    pkgList.add(info);
-                }
+        List<VPackage> targets = collectInstalledPackages(flags, userId, filter);
+        return new VParceledListSlice<PackageInfo>(new GeneratedInfoList<PackageInfo>(targets, flags, userId) {
+            @Override
+            PackageInfo generate(VPackage p, PackageSetting ps, int flags, int userId) {
+                return generatePackageInfo(p, ps, flags, userId);
             }
-        }
-        return new VParceledListSlice<>(pkgList);
+        });
     }
 
     @Override
-    public VParceledListSlice<ApplicationInfo> getInstalledApplications(int flags, int userId) {
+    public VParceledListSlice<ApplicationInfo> getInstalledApplications(int flags, int userId, PackageFilter filter) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        ArrayList<ApplicationInfo> list = new ArrayList<>(mPackages.size());
+        List<VPackage> targets = collectInstalledPackages(flags, userId, filter);
+        return new VParceledListSlice<ApplicationInfo>(new GeneratedInfoList<ApplicationInfo>(targets, flags, userId) {
+            @Override
+            ApplicationInfo generate(VPackage p, PackageSetting ps, int flags, int userId) {
+                return generateApplicationInfo(p, ps, flags, userId);
+            }
+        });
+    }
+
+    /**
+     * The packages which pass the filter and are visible to the user,
+     * nothing is generated for the others.
+     */
+    private List<VPackage> collectInstalledPackages(int flags, int userId, PackageFilter filter) {
         synchronized (mPackages) {
+            ArrayList<VPackage> targets = new ArrayList<>(mPackages.size());
             for (VPackage p : mPackages.values()) {
                 PackageSetting ps = (PackageSetting) p.mExtras;
-                ApplicationInfo info = PackageParserEx.generateApplicationInfo(p, flags, ps.readUserState(userId), userId);
-                list.add(info);
+                //noinspection deprecation
+                boolean visible = (ps.isInstalled(userId) && !ps.isHidden(userId))
+                        || (flags & PackageManager.GET_UNINSTALLED_PACKAGES) != 0;
+                if (visible && (filter == null || filter.accept(p.packageName, p.applicationInfo))) {
+                    targets.add(p);
+                }
             }
+            return targets;
+        }
+    }
+
+    /**
+     * The infos of a list of packages, each one is generated when the slice writes it.
+     * So the ones which don't fit in the first transaction are only generated
+     * when the client fetches them.
+     */
+    private abstract class GeneratedInfoList<T> extends AbstractList<T> {
+        private final List<VPackage> mTargets;
+        private final int mFlags;
+        private final int mUserId;
+
+        GeneratedInfoList(List<VPackage> targets, int flags, int userId) {
+            mTargets = targets;
+            mFlags = flags;
+            mUserId = userId;
+        }
+
+        abstract T generate(VPackage p, PackageSetting ps, int flags, int userId);
+
+        @Override
+        public T get(int index) {
+            VPackage p = mTargets.get(index);
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            synchronized (mPackages) {
+                T info = generate(p, ps, mFlags, mUserId);
+                if (info == null) {
+                    // The package was hidden for the user after the list was collected,
+                    // the size of the slice is already sent.
+                    //noinspection deprecation
+                    info = generate(p, ps, mFlags | PackageManager.GET_UNINSTALLED_PACKAGES, mUserId);
+                }
+                return info;
+            }
+        }
+
+        @Override
+        public int size() {
+            return mTargets.size();
         }
-        return new VParceledListSlice<>(list);
     }
 
     @Override
@@ -699,13 +823,7 @@ public class VPackageManagerService implements IPackageManager {
             final VPackage.ProviderComponent provider = mProvidersByAuthority.get(name);
             if (provider != null) {
                 PackageSetting ps = (PackageSetting) provider.owner.mExtras;
-                ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
-                if (providerInfo != null) {
-                    VPackage p = mPackages.get(providerInfo.packageName);
-                    PackageSetting settings = (PackageSetting) p.mExtras;
-                    ComponentFixer.fixComponentInfo(settings, providerInfo, userId);
-                    return providerInfo;
-                }
+                return generateProviderInfo(provider, ps, flags, userId);
             }
         }
         return null;
@@ -719,7 +837,7 @@ public class VPackageManagerService implements IPackageManager {
             VPackage p = mPackages.get(packageName);
             if (p != null) {
                 PackageSetting ps = (PackageSetting) p.mExtras;
-                return PackageParserEx.generateApplicationInfo(p, flags, ps.readUserState(userId), userId);
+                return generateApplicationInfo(p, ps, flags, userId);
             }
         }
         return null;
@@ -792,13 +910,6 @@ public class VPackageManagerService implements IPackageManager {
         return VPackageInstallerService.get();
     }
 
-    void createNewUser(int userId, File userPath) {
-        for (VPackage p : mPackages.values()) {
-            PackageSetting setting = (PackageSetting) p.mExtras;
-            setting.modifyUserState(userId);
-        }
-    }
-
     void cleanUpUser(int userId) {
         for (VPackage p : mPackages.values()) {
             PackageSetting ps = (PackageSetting) p.mExtras;
@@ -821,30 +932,6 @@ public class VPackageManagerService implements IPackageManager {
             return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, userId);
         }
 
-        List<ResolveInfo> queryIntentForPackage(Intent intent, String resolvedType, int flags,
-                                                ArrayList<VPackage.ActivityComponent> packageActivities, int userId) {
-            if (packageActivities == null) {
-                return null;
-            }
-            mFlags = flags;
-            final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
-            final int N = packageActivities.size();
-            ArrayList<VPackage.ActivityIntentInfo[]> listCut = new ArrayList<VPackage.ActivityIntentInfo[]>(
-                    N);
-
-            ArrayList<VPackage.ActivityIntentInfo> intentFilters;
-            for (int i = 0; i < N; ++i) {
-                intentFilters = packageActivities.get(i).intents;
-                if (intentFilters != null && intentFilters.size() > 0) {
-                    VPackage.ActivityIntentInfo[] array = new VPackage.ActivityIntentInfo[intentFilters
-                            .size()];
-                    intentFilters.toArray(array);
-                    listCut.add(array);
-                }
-            }
-            return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, userId);
-        }
-
         public final void addActivity(VPackage.ActivityComponent a, String type) {
             mActivities.put(a.getComponentName(), a);
             final int NI = a.intents.size();
@@ -953,28 +1040,6 @@ public class VPackageManagerService implements IPackageManager {
             return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, userId);
         }
 
-        public List<ResolveInfo> queryIntentForPackage(Intent intent, String resolvedType, int flags,
-                                                       ArrayList<VPackage.ServiceComponent> packageServices, int userId) {
-            if (packageServices == null) {
-                return null;
-            }
-            mFlags = flags;
-            final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
-            final int N = packageServices.size();
-            ArrayList<VPackage.ServiceIntentInfo[]> listCut = new ArrayList<VPackage.ServiceIntentInfo[]>(N);
-
-            ArrayList<VPackage.ServiceIntentInfo> intentFilters;
-            for (int i = 0; i < N; ++i) {
-                intentFilters = packageServices.get(i).intents;
-                if (intentFilters != null && intentFilters.size() > 0) {
-                    VPackage.ServiceIntentInfo[] array = new VPackage.ServiceIntentInfo[intentFilters.size()];
-                    intentFilters.toArray(array);
-                    listCut.add(array);
-                }
-            }
-            return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, userId);
-        }
-
         public final void addService(VPackage.ServiceComponent s) {
             mServices.put(s.getComponentName(), s);
             final int NI = s.intents.size();
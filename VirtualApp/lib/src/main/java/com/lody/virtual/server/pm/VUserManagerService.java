@@ -15,7 +15,6 @@ import com.lody.virtual.R;
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.env.Constants;
 import com.lody.virtual.helper.compat.ActivityManagerCompat;
-import com.lody.virtual.helper.utils.ArrayUtils;
 import com.lody.virtual.helper.utils.AtomicFile;
 import com.lody.virtual.helper.utils.FastXmlSerializer;
 import com.lody.virtual.helper.utils.VLog;
@@ -85,7 +84,11 @@ public class VUserManagerService implements IUserManager {
     private final File mBaseUserPath;
     private SparseArray<VUserInfo> mUsers = new SparseArray<VUserInfo>();
     private HashSet<Integer> mRemovingUserIds = new HashSet<Integer>();
-    private int[] mUserIds;
+    /**
+     * The ids of the fully created users, replaced as a whole by {@link #updateUserIdsLocked()}
+     * so that {@link #exists(int)} and {@link #getUserIds()} never wait for mPackagesLock.
+     */
+    private volatile UserIds mUserIds = UserIds.EMPTY;
     private boolean mGuestEnabled;
     private int mNextSerialNumber;
     // This resets on a reboot. Otherwise it keeps incrementing so that user ids are
@@ -209,9 +212,7 @@ public class VUserManagerService implements IUserManager {
     }
 
     public boolean exists(int userId) {
-        synchronized (mPackagesLock) {
-            return ArrayUtils.contains(mUserIds, userId);
-        }
+        return mUserIds.contains(userId);
     }
 
     @Override
@@ -364,13 +365,11 @@ public class VUserManagerService implements IUserManager {
      * @return the array of user ids.
      */
     public int[] getUserIds() {
-        synchronized (mPackagesLock) {
-            return mUserIds;
-        }
+        return mUserIds.ids;
     }
 
     int[] getUserIdsLPr() {
-        return mUserIds;
+        return mUserIds.ids;
     }
 
     private void readUserList() {
@@ -677,26 +676,26 @@ public class VUserManagerService implements IUserManager {
         final long ident = Binder.clearCallingIdentity();
         final VUserInfo userInfo;
         try {
-            synchronized (mInstallLock) {
-                synchronized (mPackagesLock) {
-                    if (isUserLimitReachedLocked()) return null;
-                    int userId = getNextAvailableIdLocked();
-                    userInfo = new VUserInfo(userId, name, null, flags);
-                    File userPath = new File(mBaseUserPath, Integer.toString(userId));
-                    userInfo.serialNumber = mNextSerialNumber++;
-                    long now = System.currentTimeMillis();
-                    userInfo.creationTime = (now > EPOCH_PLUS_30_YEARS) ? now : 0;
-                    userInfo.partial = true;
-                    VEnvironment.getUserSystemDirectory(userInfo.id).mkdirs();
-                    mUsers.put(userId, userInfo);
-                    writeUserListLocked();
-                    writeUserLocked(userInfo);
-                    mPm.createNewUser(userId, userPath);
-                    userInfo.partial = false;
-                    writeUserLocked(userInfo);
-                    updateUserIdsLocked();
-                }
-            }
+            // The package states of the user are created on their first change,
+            // so only the user's own metadata is written here, without holding mInstallLock.
+            synchronized (mPackagesLock) {
+                if (isUserLimitReachedLocked()) return null;
+                int userId = getNextAvailableIdLocked();
+                userInfo = new VUserInfo(userId, name, null, flags);
+                userInfo.serialNumber = mNextSerialNumber++;
+                long now = System.currentTimeMillis();
+                userInfo.creationTime = (now > EPOCH_PLUS_30_YEARS) ? now : 0;
+                // Purged on next startup if the runtime stops before both files are written.
+                userInfo.partial = true;
+                mUsers.put(userId, userInfo);
+                writeUserListLocked();
+                writeUserLocked(userInfo);
+                userInfo.partial = false;
+                writeUserLocked(userInfo);
+                updateUserIdsLocked();
+            }
+            // The package directories below it are created on demand.
+            VEnvironment.getUserSystemDirectory(userInfo.id).mkdirs();
             Intent addedIntent = new Intent(Constants.ACTION_USER_ADDED);
             addedIntent.putExtra(Constants.EXTRA_USER_HANDLE, userInfo.id);
             VActivityManagerService.get().sendBroadcastAsUser(addedIntent, VUserHandle.ALL,
@@ -816,7 +815,7 @@ public class VUserManagerService implements IUserManager {
     @Override
     public int getUserHandle(int userSerialNumber) {
         synchronized (mPackagesLock) {
-            for (int userId : mUserIds) {
+            for (int userId : mUserIds.ids) {
                 if (getUserInfoLocked(userId).serialNumber == userSerialNumber) return userId;
             }
             // Not found
@@ -841,7 +840,7 @@ public class VUserManagerService implements IUserManager {
                 newUsers[n++] = mUsers.keyAt(i);
             }
         }
-        mUserIds = newUsers;
+        mUserIds = new UserIds(newUsers);
     }
 
     /**
@@ -885,4 +884,34 @@ public class VUserManagerService implements IUserManager {
         }
     }
 
+
+    /**
+     * An immutable snapshot of the user ids, with a bitset for the membership checks.
+     */
+    private static final class UserIds {
+        static final UserIds EMPTY = new UserIds(new int[0]);
+
+        final int[] ids;
+        private final long[] bits;
+
+        UserIds(int[] ids) {
+            this.ids = ids;
+            int max = -1;
+            for (int id : ids) {
+                max = Math.max(max, id);
+            }
+            long[] bits = new long[(max >> 6) + 1];
+            for (int id : ids) {
+                if (id >= 0) {
+                    bits[id >> 6] |= 1L << id;
+                }
+            }
+            this.bits = bits;
+        }
+
+        boolean contains(int userId) {
+            int index = userId >> 6;
+            return userId >= 0 && index < bits.length && (bits[index] & (1L << userId)) != 0;
+        }
+    }
 }
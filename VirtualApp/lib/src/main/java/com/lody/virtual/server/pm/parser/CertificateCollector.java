@@ -0,0 +1,178 @@
+package com.lody.virtual.server.pm.parser;
+
+import android.content.pm.Signature;
+import android.os.Build;
+
+import com.lody.virtual.helper.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.CodeSigner;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Verify the JAR signatures of an APK with a pool of workers,
+ * each one reads a part of the entries through its own JarFile.
+ * <p>
+ * Only used on N and later, for the APKs with many entries and without an APK Signing
+ * Block which the system would verify at once, {@link #collect(File)} returns null for
+ * the others. Before N the system only verifies the AndroidManifest.xml of a package
+ * collected with PARSE_IS_SYSTEM, which is cheaper than verifying every entry here.
+ * <p>
+ * Like the system, a signature is the leaf certificate of each signer of the entries.
+ *
+ * @author Lody
+ */
+final class CertificateCollector {
+
+    private static final int MIN_PARALLEL_ENTRIES = 256;
+    private static final int WORKER_COUNT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final String APK_SIG_BLOCK_MAGIC = "APK Sig Block 42";
+
+    private static final ExecutorService sWorkers = Executors.newFixedThreadPool(WORKER_COUNT);
+
+    /**
+     * @return the signatures of the APK, null if it must be verified by the system.
+     * @throws Exception if an entry isn't signed, or not signed by the same certificates as the others.
+     */
+    static Signature[] collect(final File packageFile) throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N || hasApkSigningBlock(packageFile)) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        JarFile jarFile = new JarFile(packageFile);
+        try {
+            if (jarFile.getManifest() == null) {
+                return null;
+            }
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && !entry.getName().startsWith("META-INF/")) {
+                    names.add(entry.getName());
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+        if (names.size() < MIN_PARALLEL_ENTRIES) {
+            return null;
+        }
+        int chunk = (names.size() + WORKER_COUNT - 1) / WORKER_COUNT;
+        List<Future<Certificate[]>> results = new ArrayList<>(WORKER_COUNT);
+        for (int start = 0; start < names.size(); start += chunk) {
+            final List<String> part = names.subList(start, Math.min(names.size(), start + chunk));
+            results.add(sWorkers.submit(new Callable<Certificate[]>() {
+                @Override
+                public Certificate[] call() throws Exception {
+                    return verifyEntries(packageFile, part);
+                }
+            }));
+        }
+        Certificate[] certs = null;
+        try {
+            for (Future<Certificate[]> result : results) {
+                Certificate[] partCerts = result.get();
+                if (certs == null) {
+                    certs = partCerts;
+                } else if (!sameCertificates(certs, partCerts)) {
+                    throw new SecurityException(packageFile + " has mismatched certificates");
+                }
+            }
+        } catch (ExecutionException e) {
+            for (Future<Certificate[]> result : results) {
+                result.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        Signature[] signatures = new Signature[certs.length];
+        for (int i = 0; i < certs.length; i++) {
+            signatures[i] = new Signature(certs[i].getEncoded());
+        }
+        return signatures;
+    }
+
+    private static Certificate[] verifyEntries(File packageFile, List<String> names) throws Exception {
+        JarFile jarFile = new JarFile(packageFile, true);
+        try {
+            byte[] buffer = new byte[8192];
+            Certificate[] certs = null;
+            for (String name : names) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                JarEntry entry = jarFile.getJarEntry(name);
+                // The certificates are only known after the whole entry is read.
+                InputStream is = jarFile.getInputStream(entry);
+                try {
+                    //noinspection StatementWithEmptyBody
+                    while (is.read(buffer, 0, buffer.length) != -1) {
+                    }
+                } finally {
+                    FileUtils.closeQuietly(is);
+                }
+                Certificate[] entryCerts = getSignerCertificates(entry.getCodeSigners());
+                if (entryCerts == null) {
+                    throw new SecurityException(packageFile + " has no certificates at entry " + name);
+                }
+                if (certs == null) {
+                    certs = entryCerts;
+                } else if (!sameCertificates(certs, entryCerts)) {
+                    throw new SecurityException(packageFile + " has mismatched certificates at entry " + name);
+                }
+            }
+            return certs;
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * @return the leaf certificate of each signer chain, null if the entry isn't signed.
+     */
+    private static Certificate[] getSignerCertificates(CodeSigner[] signers) {
+        if (signers == null || signers.length == 0) {
+            return null;
+        }
+        Certificate[] certs = new Certificate[signers.length];
+        for (int i = 0; i < signers.length; i++) {
+            certs[i] = signers[i].getSignerCertPath().getCertificates().get(0);
+        }
+        return certs;
+    }
+
+    private static boolean sameCertificates(Certificate[] a, Certificate[] b) {
+        return a.length == b.length && Arrays.asList(a).containsAll(Arrays.asList(b));
+    }
+
+    private static boolean hasApkSigningBlock(File packageFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(packageFile, "r");
+        try {
+            long[] cd = PackageParserEx.findCentralDirectory(file);
+            if (cd == null || cd[0] < 16) {
+                return false;
+            }
+            // The APK Signing Block ends with its magic, right before the central directory.
+            byte[] magic = new byte[16];
+            file.seek(cd[0] - 16);
+            file.readFully(magic);
+            return APK_SIG_BLOCK_MAGIC.equals(new String(magic, "US-ASCII"));
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -31,8 +31,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import mirror.android.content.pm.ApplicationInfoL;
 import mirror.android.content.pm.ApplicationInfoN;
@@ -48,6 +50,14 @@ public class PackageParserEx {
     private static final ArrayMap<String, String[]> sSharedLibCache = new ArrayMap<>();
 
     public static VPackage parsePackage(File packageFile) throws Throwable {
+        return parsePackage(packageFile, true);
+    }
+
+    /**
+     * @param collectCertificates false to skip the verification of the signatures,
+     *                            the caller must {@link #collectCertificates(File)} later.
+     */
+    public static VPackage parsePackage(File packageFile, boolean collectCertificates) throws Throwable {
         PackageParser parser = PackageParserCompat.createParser(packageFile);
         PackageParser.Package p = PackageParserCompat.parsePackage(parser, packageFile, 0);
         if (p.requestedPermissions.contains("android.permission.FAKE_PACKAGE_SIGNATURE")
@@ -56,10 +66,95 @@ public class PackageParserEx {
             String sig = p.mAppMetaData.getString("fake-signature");
             p.mSignatures = new Signature[]{new Signature(sig)};
             VLog.d(TAG, "Using fake-signature feature on : " + p.packageName);
+        } else if (collectCertificates) {
+            collectCertificates(parser, p, packageFile);
+        }
+        return buildPackageCache(p);
+    }
+
+    /**
+     * Verify the signatures of a package which was parsed without them.
+     */
+    public static Signature[] collectCertificates(File packageFile) throws Throwable {
+        PackageParser parser = PackageParserCompat.createParser(packageFile);
+        PackageParser.Package p = PackageParserCompat.parsePackage(parser, packageFile, 0);
+        collectCertificates(parser, p, packageFile);
+        return p.mSignatures;
+    }
+
+    private static void collectCertificates(PackageParser parser, PackageParser.Package p, File packageFile) throws Throwable {
+        Signature[] signatures = null;
+        try {
+            signatures = CertificateCollector.collect(packageFile);
+        } catch (Exception e) {
+            VLog.w(TAG, "Unable to verify %s in parallel: %s", p.packageName, e);
+        }
+        if (signatures != null) {
+            p.mSignatures = signatures;
         } else {
             PackageParserCompat.collectCertificates(parser, p, PackageParser.PARSE_IS_SYSTEM);
         }
-        return buildPackageCache(p);
+    }
+
+    /**
+     * A cheap fingerprint of an APK: its size, its mtime and the CRC32 of its zip central directory,
+     * which holds the CRC32 of every entry. Null if it isn't a readable zip.
+     */
+    public static String computeFingerprint(File packageFile) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(packageFile, "r");
+            long[] cd = findCentralDirectory(file);
+            if (cd == null) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[8192];
+            file.seek(cd[0]);
+            long remaining = cd[1];
+            while (remaining > 0) {
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    return null;
+                }
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+            return file.length() + ":" + packageFile.lastModified() + ":" + Long.toHexString(crc.getValue());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            FileUtils.closeQuietly(file);
+        }
+        return null;
+    }
+
+    /**
+     * @return the offset and the size of the zip central directory, null if it isn't a zip.
+     */
+    static long[] findCentralDirectory(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        // The end of central directory record is 22 bytes, plus a comment up to 64K.
+        int tailLength = (int) Math.min(length, 22 + 0xffff);
+        byte[] tail = new byte[tailLength];
+        file.seek(length - tailLength);
+        file.readFully(tail);
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (readLeInt(tail, i) == 0x06054b50) {
+                long cdSize = readLeInt(tail, i + 12) & 0xffffffffL;
+                long cdOffset = readLeInt(tail, i + 16) & 0xffffffffL;
+                if (cdOffset + cdSize > length) {
+                    return null;
+                }
+                return new long[]{cdOffset, cdSize};
+            }
+        }
+        return null;
+    }
+
+    private static int readLeInt(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
     }
 
     public static VPackage readPackageCache(String packageName) {
@@ -119,13 +214,18 @@ public class PackageParserEx {
         } finally {
             p.recycle();
         }
+        saveSignatures(pkg);
+    }
+
+    public static void saveSignatures(VPackage pkg) {
+        final String packageName = pkg.packageName;
         Signature[] signatures = pkg.mSignatures;
         if (signatures != null) {
             File signatureFile = VEnvironment.getSignatureFile(packageName);
             if (signatureFile.exists() && !signatureFile.delete()) {
                 VLog.w(TAG, "Unable to delete the signatures of " + packageName);
             }
-            p = Parcel.obtain();
+            Parcel p = Parcel.obtain();
             try {
                 p.writeTypedArray(signatures, 0);
                 FileUtils.writeParcelToFile(p, signatureFile);